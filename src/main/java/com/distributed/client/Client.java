@@ -3,7 +3,6 @@ package com.distributed.client;
 import com.distributed.chat.Receiver;
 import com.distributed.chat.Sender;
 import com.distributed.model.Message;
-import com.distributed.model.RemoteInputStreamUtils;
 import com.distributed.model.Request;
 import com.distributed.model.Result;
 import com.distributed.model.User;
@@ -11,17 +10,21 @@ import com.distributed.server.CentralServer;
 import com.distributed.server.CentralServerInterface;
 import com.distributed.server.Server;
 import com.distributed.server.ServerInterface;
+import com.healthmarketscience.rmiio.RemoteInputStreamClient;
 import com.healthmarketscience.rmiio.RemoteInputStreamServer;
 import com.healthmarketscience.rmiio.SimpleRemoteInputStream;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.rmi.registry.LocateRegistry;
@@ -44,6 +47,9 @@ public class Client {
   private static String CENTRAL_SERVER_HOST = "127.0.0.1";
   private static int CENTRAL_SERVER_RMI_PORT = 1200;
   public static int UDP_PORT = 4567;
+  // attempts to get a server assigned when none is available, with exponential backoff
+  private static final int ASSIGN_ATTEMPTS = 5;
+  private static final long ASSIGN_BACKOFF_MS = 200;
   private static String DATA_DIR;
   private String clientName;
   private ServerInterface serverInterface;
@@ -271,7 +277,7 @@ public class Client {
   }
 
   /**
-   * Retrieve an available server from central server.
+   * Retrieve an available server from central server, backing off while none is available.
    *
    * @return assigned server
    */
@@ -280,9 +286,19 @@ public class Client {
       Registry centralRegistry = LocateRegistry.getRegistry(CENTRAL_SERVER_HOST, CENTRAL_SERVER_RMI_PORT);
       CentralServerInterface central = (CentralServerInterface) centralRegistry.lookup(CentralServer.class.getSimpleName() + CENTRAL_SERVER_RMI_PORT);
       int serverPort = central.assignAliveServerToClient();
+      long backoffMs = ASSIGN_BACKOFF_MS;
+      for (int attempt = 1; serverPort < 0 && attempt < ASSIGN_ATTEMPTS; attempt++) {
+        System.out.println("No server available, retrying in " + backoffMs + " ms");
+        Thread.sleep(backoffMs);
+        backoffMs *= 2;
+        serverPort = central.assignAliveServerToClient();
+      }
+      if (serverPort < 0) throw new IllegalStateException("No server available");
       System.out.println("Assigned to " + serverPort);
 
-      Registry registry = LocateRegistry.getRegistry(serverPort);
+      // servers may run on other hosts than the central server
+      String serverHost = central.getClusterView().getHost(serverPort);
+      Registry registry = LocateRegistry.getRegistry(serverHost, serverPort);
       ServerInterface serverInterface = (ServerInterface) registry.lookup(Server.class.getSimpleName() + serverPort);
       return serverInterface;
     } catch (Exception e) {
@@ -399,8 +415,6 @@ public class Client {
    * @param chosenFilename output filename
    */
   private void edit(String docName, int secNumber, String chosenFilename) throws Exception {
-    FileChannel fileChannel = null;
-    OutputStream fileStream = null;
     try {
       if (session != null) {
         String filepath = chosenFilename != null ? chosenFilename : DATA_DIR + docName + "_" + secNumber;
@@ -414,10 +428,7 @@ public class Client {
             System.err.println(result.getMessage());
             return;
           }
-          fileChannel = FileChannel.open(Paths.get(filepath), StandardOpenOption.CREATE,
-                  StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-          fileStream = Channels.newOutputStream(fileChannel);
-          fileStream.write(RemoteInputStreamUtils.toBytes(result.getRemoteInputStream()));
+          download(result, filepath);
 
           session.setOccupiedFilePath(filepath);
           session.setOccupiedFileName(docName);
@@ -432,17 +443,6 @@ public class Client {
     } catch (Exception e) {
       System.err.println(e.getMessage());
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (fileChannel != null) {
-          fileChannel.close();
-        }
-        if (fileChannel != null) {
-          fileStream.close();
-        }
-      } catch (Exception e) {
-        System.err.println(e.getMessage());
-      }
     }
   }
 
@@ -485,8 +485,6 @@ public class Client {
    * Read content of requested section.
    */
   private void showSection(String docName, int secNumber, String chosenFilename) {
-    FileChannel fileChannel = null;
-    OutputStream fileStream = null;
     try {
       if (session != null) {
         String filename = chosenFilename != null ? chosenFilename : DATA_DIR + docName + "_" + secNumber;
@@ -501,10 +499,7 @@ public class Client {
             System.err.println(result.getMessage());
             return;
           } else {
-            byte[] bytes = RemoteInputStreamUtils.toBytes(result.getRemoteInputStream());
-            fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-            fileStream = Channels.newOutputStream(fileChannel);
-            fileStream.write(bytes);
+            download(result, filename);
             if (!result.getMessage().equals("None")) {
               System.out.println(result.getMessage() + " is editing the section right now");
             } else System.out.println("No one is editing this section");
@@ -517,17 +512,6 @@ public class Client {
     } catch (Exception e) {
       System.err.println(e.getMessage());
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (fileChannel != null) {
-          fileChannel.close();
-        }
-        if (fileChannel != null) {
-          fileStream.close();
-        }
-      } catch (Exception e) {
-        System.err.println(e.getMessage());
-      }
     }
   }
 
@@ -576,8 +560,6 @@ public class Client {
    * Read the requested document and concatenate all its sections.
    */
   private void showDocument(String docName, String outputName) {
-    FileChannel fileChannel = null;
-    OutputStream fileStream = null;
     try {
       if (session != null) {
         String filename = DATA_DIR + (outputName == null ? docName : outputName);
@@ -595,11 +577,7 @@ public class Client {
               System.out.println(String.format("These are the on editing sections: %s", result.getMessage()));
             } else System.out.println("No one is editing this document");
           }
-          fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-          fileStream = Channels.newOutputStream(fileChannel);
-
-          byte[] bytes = RemoteInputStreamUtils.toBytes(result.getRemoteInputStream());
-          fileStream.write(bytes);
+          download(result, filename);
 
         } catch (IOException ex) {
           System.err.println(ex.getMessage());
@@ -608,21 +586,43 @@ public class Client {
     } catch (Exception e) {
       System.err.println(e.getMessage());
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (fileChannel != null) {
-          fileChannel.close();
+    }
+  }
+
+  /**
+   * Write the content attached to a result straight to a file. Content offered through the
+   * transfer socket of the server is copied from the socket to the file by the channels, otherwise
+   * the remote stream is copied chunk by chunk.
+   *
+   * @param result   result of edit / showSection / showDocumentContent
+   * @param filename output filename
+   */
+  private void download(Result result, String filename) throws IOException {
+    try (FileChannel fileChannel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (result.getTransferTicket() == null) {
+        try (InputStream input = RemoteInputStreamClient.wrap(result.getRemoteInputStream())) {
+          IOUtils.copyLarge(input, Channels.newOutputStream(fileChannel));
         }
-        if (fileChannel != null) {
-          fileStream.close();
+        return;
+      }
+      try (SocketChannel socketChannel = SocketChannel.open(
+              new InetSocketAddress(result.getTransferHost(), result.getTransferPort()))) {
+        DataOutputStream ticketStream = new DataOutputStream(Channels.newOutputStream(socketChannel));
+        ticketStream.writeUTF(result.getTransferTicket());
+        ticketStream.flush();
+        long position = 0;
+        while (position < result.getTransferSize()) {
+          long transferred = fileChannel.transferFrom(socketChannel, position, result.getTransferSize() - position);
+          if (transferred <= 0) {
+            throw new IOException("Download interrupted at " + position + " bytes");
+          }
+          position += transferred;
         }
-      } catch (Exception e) {
-        System.err.println(e.getMessage());
       }
     }
   }
 
-
   /**
    * Print all new notifications collected since the last printing.
    */
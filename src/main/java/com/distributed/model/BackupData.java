@@ -6,7 +6,8 @@ import com.distributed.server.DocumentDatabase;
 import com.distributed.server.UserDatabase;
 
 import java.io.Serializable;
-import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.UUID;
 
 public class BackupData implements Serializable {
   private static final long serialVersionUID = 1L;
@@ -14,14 +15,18 @@ public class BackupData implements Serializable {
   UserDatabase userDatabase;
   AliveUserDatabase aliveUserDatabase;
   ChatManager chatManager;
-  Map<String, byte[]> fileStreamMap;
+  // transactions committed by the helper when the databases were copied, in commit order
+  LinkedHashMap<UUID, CommitParams> committedTransactions;
+  // server the section files are streamed from
+  int helperPort;
 
-  public BackupData(DocumentDatabase documentDatabase, UserDatabase userDatabase, AliveUserDatabase aliveUserDatabase, ChatManager chatManager, Map<String, byte[]> fileStreamMap) {
+  public BackupData(DocumentDatabase documentDatabase, UserDatabase userDatabase, AliveUserDatabase aliveUserDatabase, ChatManager chatManager, LinkedHashMap<UUID, CommitParams> committedTransactions, int helperPort) {
     this.documentDatabase = documentDatabase;
     this.userDatabase = userDatabase;
     this.aliveUserDatabase = aliveUserDatabase;
     this.chatManager = chatManager;
-    this.fileStreamMap = fileStreamMap;
+    this.committedTransactions = committedTransactions;
+    this.helperPort = helperPort;
   }
 
   public DocumentDatabase getDocumentDatabase() {
@@ -56,11 +61,19 @@ public class BackupData implements Serializable {
     this.chatManager = chatManager;
   }
 
-  public Map<String, byte[]> getFileStreamMap() {
-    return fileStreamMap;
+  public LinkedHashMap<UUID, CommitParams> getCommittedTransactions() {
+    return committedTransactions;
   }
 
-  public void setFileStreamMap(Map<String, byte[]> fileStreamMap) {
-    this.fileStreamMap = fileStreamMap;
+  public void setCommittedTransactions(LinkedHashMap<UUID, CommitParams> committedTransactions) {
+    this.committedTransactions = committedTransactions;
+  }
+
+  public int getHelperPort() {
+    return helperPort;
+  }
+
+  public void setHelperPort(int helperPort) {
+    this.helperPort = helperPort;
   }
 }
@@ -0,0 +1,104 @@
+package com.distributed.model;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Hosts, ports and statuses of all servers as seen by the central server, fetched in one call. The
+ * epoch grows on every status or membership change, so a cached view is current as long as the epoch
+ * is. The membership epoch grows only when a server joins or leaves, servers use it to fence
+ * transactions coordinated with an outdated membership.
+ */
+public class ClusterView implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private long epoch;
+  private long membershipEpoch;
+  private int[] ports;
+  // same order as ports
+  private String[] hosts;
+  // 0 -> empty, 1 -> busy, 2 -> dead, 3 -> suspected, same order as ports
+  private int[] statuses;
+
+  public ClusterView(long epoch, long membershipEpoch, int[] ports, String[] hosts, int[] statuses) {
+    this.epoch = epoch;
+    this.membershipEpoch = membershipEpoch;
+    this.ports = ports;
+    this.hosts = hosts;
+    this.statuses = statuses;
+  }
+
+  public long getEpoch() {
+    return this.epoch;
+  }
+
+  public long getMembershipEpoch() {
+    return this.membershipEpoch;
+  }
+
+  public int[] getPorts() {
+    return this.ports;
+  }
+
+  public String[] getHosts() {
+    return this.hosts;
+  }
+
+  public int[] getStatuses() {
+    return this.statuses;
+  }
+
+  /**
+   * Gets the status of a server.
+   *
+   * @param port server port #
+   * @return 0 -> empty, 1 -> busy, 2 -> dead, 3 -> suspected, -1 -> Not found
+   */
+  public int getStatus(int port) {
+    for (int i = 0; i < ports.length; i++) {
+      if (ports[i] == port) return statuses[i];
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the host of a server.
+   *
+   * @param port server port #
+   * @return host of the server, null if not found
+   */
+  public String getHost(int port) {
+    for (int i = 0; i < ports.length; i++) {
+      if (ports[i] == port) return hosts[i];
+    }
+    return null;
+  }
+
+  /**
+   * Whether a server is a member of the cluster, regardless of its status.
+   *
+   * @param port server port #
+   * @return true if the server is a member
+   */
+  public boolean isMember(int port) {
+    return Arrays.stream(ports).anyMatch(memberPort -> memberPort == port);
+  }
+
+  /**
+   * Gets all servers except one, regardless of their status.
+   *
+   * @param port server port #
+   * @return peer ports
+   */
+  public int[] getPeers(int port) {
+    return Arrays.stream(ports).filter(peerPort -> peerPort != port).toArray();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("epoch ").append(epoch).append(":");
+    for (int i = 0; i < ports.length; i++) {
+      sb.append(" ").append(hosts[i]).append(":").append(ports[i]).append("=").append(statuses[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -1,15 +1,14 @@
 package com.distributed.model;
 
-import com.distributed.chat.ChatManager;
-import com.distributed.server.AliveUserDatabase;
-import com.distributed.server.DocumentDatabase;
-import com.distributed.server.UserDatabase;
 import com.healthmarketscience.rmiio.RemoteInputStream;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
- * CommitParams.java Commit parameters for distributed transactions.
+ * CommitParams.java Commit parameters for distributed transactions. Only carries the mutation
+ * described by {@link CommitEnum} (e.g. the new user, the session token, the shared document), every
+ * participant applies it to its own databases in executeCommit.
  *
  * @version 2020-4-21
  */
@@ -17,30 +16,30 @@ public class CommitParams implements Serializable {
   private User user;
   private CommitEnum commitEnum;
   private RemoteInputStream inputStream;
-  private byte[] bytes;
 
   private String docName;
   private int sectionNum;
   private String targetUser;
   private long multicastAddress;
-
-  // in memory database
-  private DocumentDatabase documentDatabase;
-  private AliveUserDatabase aliveUserDatabase;
-  private ChatManager chatManager;
-  private UserDatabase userDatabase;
+  // session token generated by the coordinator on LOGIN
+  private String token;
+  // section version resulting from the operation, set when it is added to the operation log
+  private long version;
+  // EDIT_END: content spooled by the coordinator, path relative to the data directory, pulled by
+  // the peers while preparing
+  private String uploadPath;
+  private long uploadSize;
+  private int uploadPort;
+  // coordinator of the transaction and the membership epoch it prepared with, participants reject
+  // prepares of removed servers
+  private int coordinatorPort;
+  private long membershipEpoch;
+  // GET_NOTIFICATIONS: notifications delivered by the coordinator, removed from the unread ones
+  private List<String> deliveredNotifications;
 
   public CommitParams() {
   }
 
-  public byte[] getBytes() {
-    return bytes;
-  }
-
-  public void setBytes(byte[] bytes) {
-    this.bytes = bytes;
-  }
-
   public User getUser() {
     return this.user;
   }
@@ -81,36 +80,68 @@ public class CommitParams implements Serializable {
     this.sectionNum = sectionNum;
   }
 
-  public DocumentDatabase getDocumentDatabase() {
-    return this.documentDatabase;
+  public String getToken() {
+    return token;
+  }
+
+  public void setToken(String token) {
+    this.token = token;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  public String getUploadPath() {
+    return uploadPath;
+  }
+
+  public void setUploadPath(String uploadPath) {
+    this.uploadPath = uploadPath;
+  }
+
+  public long getUploadSize() {
+    return uploadSize;
+  }
+
+  public void setUploadSize(long uploadSize) {
+    this.uploadSize = uploadSize;
+  }
+
+  public int getUploadPort() {
+    return uploadPort;
   }
 
-  public void setDocumentDatabase(DocumentDatabase documentDatabase) {
-    this.documentDatabase = documentDatabase;
+  public void setUploadPort(int uploadPort) {
+    this.uploadPort = uploadPort;
   }
 
-  public AliveUserDatabase getAliveUserDatabase() {
-    return this.aliveUserDatabase;
+  public int getCoordinatorPort() {
+    return coordinatorPort;
   }
 
-  public void setAliveUserDatabase(AliveUserDatabase aliveUserDatabase) {
-    this.aliveUserDatabase = aliveUserDatabase;
+  public void setCoordinatorPort(int coordinatorPort) {
+    this.coordinatorPort = coordinatorPort;
   }
 
-  public ChatManager getChatManager() {
-    return this.chatManager;
+  public long getMembershipEpoch() {
+    return membershipEpoch;
   }
 
-  public void setChatManager(ChatManager chatManager) {
-    this.chatManager = chatManager;
+  public void setMembershipEpoch(long membershipEpoch) {
+    this.membershipEpoch = membershipEpoch;
   }
 
-  public UserDatabase getUserDatabase() {
-    return this.userDatabase;
+  public List<String> getDeliveredNotifications() {
+    return deliveredNotifications;
   }
 
-  public void setUserDatabase(UserDatabase userDatabase) {
-    this.userDatabase = userDatabase;
+  public void setDeliveredNotifications(List<String> deliveredNotifications) {
+    this.deliveredNotifications = deliveredNotifications;
   }
 
   public String getTargetUser() {
@@ -1,7 +1,5 @@
 package com.distributed.model;
 
-import java.io.File;
-import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -13,6 +11,8 @@ public class Document implements Serializable {
   private User creator;
   private List<User> authors = new ArrayList<>();
   private List<Section> sections = new ArrayList<>();
+  // bumped on every committed create, share and EDIT_END of the document
+  private long version;
 
   public Document(String name, User creator, List<Section> sections) {
     this.name = name;
@@ -22,23 +22,18 @@ public class Document implements Serializable {
   }
 
   /**
-   * Creates a new document with path.
+   * Creates a new document with path. The section contents are created by the server's section
+   * store.
    */
-  public static Document create(User creator, String directory, int sectionsNumber, String name) throws IOException {
+  public static Document create(User creator, String directory, int sectionsNumber, String name) {
     String path = directory + name;
-    File document = new File(path);
-    if (!document.exists() || !document.isDirectory()) {
-      boolean mkdir = document.mkdir();
-      if (!mkdir) throw new RuntimeException("Unable to create document.");
-    }
     List<Section> sections = new ArrayList<>();
     for (int i = 0; i < sectionsNumber; i++) {
-      Section sec = new Section(path, String.valueOf(i));
-      sections.add(sec);
-      File sectionFile = new File(sec.getPath());
-      sectionFile.createNewFile();
+      sections.add(new Section(path, String.valueOf(i)));
     }
-    return new Document(name, creator, sections);
+    Document newDocument = new Document(name, creator, sections);
+    newDocument.setVersion(1);
+    return newDocument;
   }
 
   public Section getSectionByIndex(int index) {
@@ -95,6 +90,14 @@ public class Document implements Serializable {
     this.authors = authors;
   }
 
+  public long getVersion() {
+    return version;
+  }
+
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
   public List<Section> getSections() {
     return this.sections;
   }
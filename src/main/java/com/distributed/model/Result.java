@@ -12,6 +12,11 @@ public class Result implements Serializable {
   private String message;
   private RemoteInputStream remoteInputStream;
   private RemoteOutputStream remoteOutputStream;
+  // side channel download of the content, see TransferServer
+  private String transferHost;
+  private int transferPort;
+  private String transferTicket;
+  private long transferSize;
 
   public Result(int status, String message) {
     this.status = status;
@@ -66,4 +71,36 @@ public class Result implements Serializable {
   public void setRemoteOutputStream(RemoteOutputStream remoteOutputStream) {
     this.remoteOutputStream = remoteOutputStream;
   }
+
+  public String getTransferHost() {
+    return this.transferHost;
+  }
+
+  public void setTransferHost(String transferHost) {
+    this.transferHost = transferHost;
+  }
+
+  public int getTransferPort() {
+    return this.transferPort;
+  }
+
+  public void setTransferPort(int transferPort) {
+    this.transferPort = transferPort;
+  }
+
+  public String getTransferTicket() {
+    return this.transferTicket;
+  }
+
+  public void setTransferTicket(String transferTicket) {
+    this.transferTicket = transferTicket;
+  }
+
+  public long getTransferSize() {
+    return this.transferSize;
+  }
+
+  public void setTransferSize(long transferSize) {
+    this.transferSize = transferSize;
+  }
 }
@@ -1,27 +1,35 @@
 package com.distributed.model;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Section implements Serializable {
   private static final long serialVersionUID = 4529055276637295352L;
 
+  // "DOCUMENT/sectionN", informational only: contents are read through the server's section store
   private String path;
   private User occupant;
   private ReentrantLock lock;
+  // bumped on every committed EDIT_END
+  private long version;
 
   public Section(String directory, String name) {
     this.path = directory + "/" + "section" + name;
     lock = new ReentrantLock();
   }
 
+  /**
+   * Creates a section stored at the given path.
+   *
+   * @param path section file path
+   * @return the section
+   */
+  public static Section fromPath(String path) {
+    Section section = new Section("", "");
+    section.setPath(path);
+    return section;
+  }
+
   public boolean occupy(User user) {
     if (lock.tryLock()) {
       if (this.occupant == null) {
@@ -51,42 +59,16 @@ public class Section implements Serializable {
     return path;
   }
 
-  // a new string replace port in current path
-  public String getPathByPort(int curPort) {
-    String[] split = path.split("/", 3);
-    String[] server = split[1].split("_");
-    String originalPort = server[2];
-    split[1] = split[1].replace(originalPort, String.valueOf(curPort));
-    StringBuilder sb = new StringBuilder();
-    sb.append(split[0]).append("/").append(split[1]).append("/").append(split[2]);
-    return sb.toString();
-  }
-
   public void setPath(String path) {
     this.path = path;
   }
 
-  /**
-   * get the inputStream to read the section content
-   *
-   * @return
-   * @throws IOException
-   */
-  public InputStream getFileInputStream() throws IOException {
-    FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
-    return Channels.newInputStream(fileChannel);
+  public long getVersion() {
+    return version;
   }
 
-  /**
-   * get the outputStream to fill the section with a new content
-   *
-   * @return
-   * @throws IOException
-   */
-  public OutputStream getWriteStream() throws IOException {
-    FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-    return Channels.newOutputStream(fileChannel);
+  public void setVersion(long version) {
+    this.version = version;
   }
 
-
 }
@@ -0,0 +1,51 @@
+package com.distributed.model;
+
+import java.io.Serializable;
+
+/**
+ * Load of a server as reported to the central server with every heartbeat
+ */
+public class ServerLoad implements Serializable {
+  private static final long serialVersionUID = 1L;
+  // client requests being processed
+  private int inFlightRequests;
+  // users logged in through this server
+  private int activeSessions;
+  // moving average of the client request latency
+  private double latencyMs;
+
+  public ServerLoad(int inFlightRequests, int activeSessions, double latencyMs) {
+    this.inFlightRequests = inFlightRequests;
+    this.activeSessions = activeSessions;
+    this.latencyMs = latencyMs;
+  }
+
+  public int getInFlightRequests() {
+    return this.inFlightRequests;
+  }
+
+  public void setInFlightRequests(int inFlightRequests) {
+    this.inFlightRequests = inFlightRequests;
+  }
+
+  public int getActiveSessions() {
+    return this.activeSessions;
+  }
+
+  public void setActiveSessions(int activeSessions) {
+    this.activeSessions = activeSessions;
+  }
+
+  public double getLatencyMs() {
+    return this.latencyMs;
+  }
+
+  public void setLatencyMs(double latencyMs) {
+    this.latencyMs = latencyMs;
+  }
+
+  @Override
+  public String toString() {
+    return inFlightRequests + " in flight, " + activeSessions + " sessions, " + String.format("%.1f", latencyMs) + " ms";
+  }
+}
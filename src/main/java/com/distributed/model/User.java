@@ -80,6 +80,37 @@ public class User implements Serializable {
     }
   }
 
+  /**
+   * Gets a copy of the unread notifications, which stay unread until removed.
+   *
+   * @return notifications strings array
+   */
+  public List<String> peekUnreadNotifications() {
+    if (null != notifications) {
+      synchronized (notifications) {
+        return new ArrayList<>(notifications);
+      }
+    } else {
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Removes delivered notifications from the unread ones, once each. Notifications added since they
+   * were delivered stay unread.
+   *
+   * @param deliveredNotifications notifications delivered to the user
+   */
+  public void removeNotifications(List<String> deliveredNotifications) {
+    if (null != notifications) {
+      synchronized (notifications) {
+        for (String doc : deliveredNotifications) {
+          notifications.remove(doc);
+        }
+      }
+    }
+  }
+
   /**
    * Add a new notification value to the unread ones.
    *
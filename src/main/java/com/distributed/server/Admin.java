@@ -6,7 +6,8 @@ import java.util.Scanner;
 /**
  * Admin.java
  *
- * Implements an administrator server that can send kill/restart requests to central server.
+ * Implements an administrator server that can send kill/restart/add/remove/status requests to central
+ * server.
  *
  * @version 2020-4-21
  */
@@ -22,6 +23,9 @@ public class Admin {
             System.out.println("-----------------------------------");
             System.out.println("kill <port>: to kill a server");
             System.out.println("restart <port>: to restart a server");
+            System.out.println("status: to show the status of all servers");
+            System.out.println("add <port>: to add a new server to the cluster");
+            System.out.println("remove <port>: to remove a server from the cluster");
             System.out.println("-----------------------------------");
             String command = null;
             Scanner input = new Scanner(System.in);
@@ -54,6 +58,29 @@ public class Admin {
                                     }
                                 } else throw new IllegalArgumentException();
                                 break;
+                            case "add":
+                                if(arguments.length >= 2) {
+                                    try{
+                                        int port = Integer.parseInt(arguments[1]);
+                                        if (!centralServer.addServer(port)) System.err.println("Server " + port + " could not join the cluster.");
+                                    } catch(NumberFormatException ex) {
+                                        throw new IllegalArgumentException();
+                                    }
+                                } else throw new IllegalArgumentException();
+                                break;
+                            case "remove":
+                                if(arguments.length >= 2) {
+                                    try{
+                                        int port = Integer.parseInt(arguments[1]);
+                                        if (!centralServer.deregisterServer(port)) System.err.println("Server " + port + " is not a member.");
+                                    } catch(NumberFormatException ex) {
+                                        throw new IllegalArgumentException();
+                                    }
+                                } else throw new IllegalArgumentException();
+                                break;
+                            case "status":
+                                System.out.println(centralServer.getClusterView());
+                                break;
                             default:
                                 throw new IllegalArgumentException();
                         }
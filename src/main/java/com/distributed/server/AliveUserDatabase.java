@@ -4,26 +4,26 @@ import com.distributed.model.User;
 
 import java.io.Serializable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * AliveUserDatabase.java
  *
  * Implements data structure and methods for alive users.
- * Uses ReadWriteLock when updating database.
+ * Records are indexed both by username and by session token.
  *
  * @version 2020-4-21
  */
 public class AliveUserDatabase implements Serializable {
   ConcurrentHashMap<String, AliveUserRecord> aliveUsers;
-  private ReentrantReadWriteLock mutex;
+  // session token -> record, kept consistent with aliveUsers on login/logout
+  private ConcurrentHashMap<String, AliveUserRecord> tokenIndex;
 
   /**
    * Constructor
    */
   AliveUserDatabase() {
     aliveUsers = new ConcurrentHashMap<>();
-    mutex = new ReentrantReadWriteLock();
+    tokenIndex = new ConcurrentHashMap<>();
   }
 
 
@@ -37,12 +37,38 @@ public class AliveUserDatabase implements Serializable {
   String login(User user) {
     if (user == null) return null;
     AliveUserRecord record = new AliveUserRecord(user);
-    mutex.writeLock().lock();
-    aliveUsers.put(user.getUsername(), record);
-    mutex.writeLock().unlock();
+    if (record.getToken() == null) return null;
+    putRecord(record);
     return record.getToken();
   }
 
+  /**
+   * Logs a User instance into the AliveUsersDB with a token generated by the 2PC coordinator, so
+   * that every replica accepts the same session token.
+   *
+   * @param user  user reference
+   * @param token session token
+   * @return the session token or null if error occurs
+   */
+  String login(User user, String token) {
+    if (user == null || token == null) return null;
+    putRecord(new AliveUserRecord(user, token));
+    return token;
+  }
+
+  /**
+   * Stores a record in both indexes, dropping the token of the replaced session if any.
+   *
+   * @param record alive user record
+   */
+  private void putRecord(AliveUserRecord record) {
+    AliveUserRecord previous = aliveUsers.put(record.getUser().getUsername(), record);
+    if (previous != null) {
+      tokenIndex.remove(previous.getToken(), previous);
+    }
+    tokenIndex.put(record.getToken(), record);
+  }
+
 
   /**
    * When logout, remove the user from the aliveUserDatabase.
@@ -52,11 +78,9 @@ public class AliveUserDatabase implements Serializable {
    */
   boolean logout(User user) {
     if (user == null) return false;
-    if (!isLoggedIn(user.getUsername())) return false;
-
-    mutex.writeLock().lock();
-    aliveUsers.remove(user.getUsername());
-    mutex.writeLock().unlock();
+    AliveUserRecord record = aliveUsers.remove(user.getUsername());
+    if (record == null) return false;
+    tokenIndex.remove(record.getToken(), record);
     return true;
   }
 
@@ -67,9 +91,9 @@ public class AliveUserDatabase implements Serializable {
    * @return user reference or null if error occurs
    */
   User getUserByToken(String token) {
-    for (AliveUserRecord record : aliveUsers.values())
-      if (record.verifyToken(token)) return record.getUser();
-    return null;
+    if (token == null) return null;
+    AliveUserRecord record = tokenIndex.get(token);
+    return record == null ? null : record.getUser();
   }
 
   /**
@@ -78,7 +102,8 @@ public class AliveUserDatabase implements Serializable {
    * @return token
    */
   String getTokenByUser(String username) {
-    return aliveUsers.get(username).getToken();
+    AliveUserRecord record = aliveUsers.get(username);
+    return record == null ? null : record.getToken();
   }
 
   /**
@@ -87,7 +112,8 @@ public class AliveUserDatabase implements Serializable {
    * @return true if logged in, false if user not exist or logged out.
    */
   boolean isLoggedIn(String username) {
-    return aliveUsers.containsKey(username) && aliveUsers.get(username).getToken() != null;
+    AliveUserRecord record = aliveUsers.get(username);
+    return record != null && record.getToken() != null;
   }
 
   /**
@@ -119,6 +145,16 @@ public class AliveUserDatabase implements Serializable {
       }
     }
 
+    /**
+     * Constructor
+     * @param user  user reference
+     * @param token session token
+     */
+    AliveUserRecord(User user, String token) {
+      this.user = user;
+      this.token = token;
+    }
+
     /**
      * Gets the user.
      * @return user reference
@@ -135,14 +171,6 @@ public class AliveUserDatabase implements Serializable {
       return token;
     }
 
-    /**
-     * set token
-     * @param token token
-     */
-    void setToken(String token) {
-      this.token = token;
-    }
-
     /**
      * Verifies if the session token is this record related or not.
      *
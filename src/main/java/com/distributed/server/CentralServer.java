@@ -1,19 +1,35 @@
 package com.distributed.server;
 
+import com.distributed.model.ClusterView;
+import com.distributed.model.ServerLoad;
+
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * CentralServer.java The central service that supports users logging on, adding or removing clients
- * or servers, and other housekeeping tasks. Assumption: the central server never fails.
+ * or servers, and other housekeeping tasks. Assumption: the central server never fails. Servers are
+ * started in-process or in their own JVM on any host, in which case they register themselves. A
+ * server is identified by its port, which must be unique in the cluster.
  *
  * @version 2020-4-21
  */
@@ -21,13 +37,47 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
   private String host;
   private int centralPort;
   private String centralName;
-  private int[] serverPorts;
+  // members of the cluster, replaced as a whole when a server joins or leaves
+  private volatile int[] serverPorts;
+  // host of each member, the central server host for the servers started in this JVM
+  private ConcurrentMap<Integer, String> serverHosts;
+  // bumped when a server joins or leaves, see ClusterView
+  private AtomicLong membershipEpoch;
   private ServerLogger serverLogger;
-  // 0 -> empty, 1 -> busy, 2 -> die
-  private Map<Integer, Integer> serverStatus;
+  // 0 -> empty, 1 -> busy, 2 -> die, 3 -> suspected; transitions are compare-and-set
+  private ConcurrentMap<Integer, Integer> serverStatus;
+  // bumped on every status change, see getClusterViewSince
+  private AtomicLong epoch;
+  // server objects exported by this JVM, unexported when killed so that cached stubs stop reaching them
+  private Map<Integer, Server> servers;
+  // members killed by the admin, their late heartbeats are ignored until they are restarted
+  private Set<Integer> killed;
+  // latest load reported by each server's heartbeat
+  private Map<Integer, ServerLoad> serverLoads;
+  // clients assigned to each server since its last heartbeat, not counted in its load yet
+  private ConcurrentMap<Integer, Integer> pendingAssignments;
+  // suspicion level of each server from its heartbeats
+  private FailureDetector failureDetector;
+  private ScheduledExecutorService detectorExecutor;
+  // catch-ups and recoveries of re-admitted servers, they may take a while and must not delay detection
+  private ExecutorService recoveryExecutor;
+  private double suspectPhi;
+  private double deadPhi;
+  // servers that may have missed commits, recovered from a peer before they are re-admitted
+  private Set<Integer> needsCatchUp;
+  // servers being recovered or joining, their heartbeats do not re-admit them
+  private Set<Integer> recovering;
+  // serializes joins and leaves
+  private final Object membershipLock = new Object();
 
   private static final int DEFAULT_CENTRAL_PORT = 1200;
   private static final int[] DEFAULT_SERVER_PORTS = new int[]{1300, 1400, 1500, 1600, 1700};
+  // heartbeat period of the servers, see "server.heartbeatMs"
+  private static final long DEFAULT_HEARTBEAT_MS = 1000;
+  // phi above which a server stops getting clients, see "central.suspectPhi"
+  private static final double DEFAULT_SUSPECT_PHI = 3;
+  // phi above which a server is dead, see "central.deadPhi"
+  private static final double DEFAULT_DEAD_PHI = 8;
 
 
   /**
@@ -42,25 +92,55 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
     this.host = host;
     this.centralPort = currPort;
     this.centralName = "CentralServer" + currPort;
-    this.serverPorts = serverPorts;
-    this.serverStatus = new HashMap();
+    this.serverPorts = serverPorts.clone();
+    this.serverHosts = new ConcurrentHashMap<>();
+    for (int port : serverPorts) {
+      serverHosts.put(port, host);
+    }
+    this.membershipEpoch = new AtomicLong();
+    this.serverStatus = new ConcurrentHashMap<>();
+    this.epoch = new AtomicLong();
+    this.servers = new ConcurrentHashMap<>();
+    this.killed = ConcurrentHashMap.newKeySet();
+    this.serverLoads = new ConcurrentHashMap<>();
+    this.pendingAssignments = new ConcurrentHashMap<>();
+    this.needsCatchUp = ConcurrentHashMap.newKeySet();
+    this.recovering = ConcurrentHashMap.newKeySet();
     serverLogger = new ServerLogger();
+    long heartbeatMs = Long.getLong("server.heartbeatMs", DEFAULT_HEARTBEAT_MS);
+    suspectPhi = Double.parseDouble(System.getProperty("central.suspectPhi", String.valueOf(DEFAULT_SUSPECT_PHI)));
+    deadPhi = Double.parseDouble(System.getProperty("central.deadPhi", String.valueOf(DEFAULT_DEAD_PHI)));
+    failureDetector = new FailureDetector(heartbeatMs);
     bindRMI();
     for (int port : this.serverPorts) {
-      Server server = new Server(port, centralPort);
-      ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(server, 0);
-      Registry registry = LocateRegistry.createRegistry(port);
-      registry.rebind(Server.class.getSimpleName() + port, stub);
-      serverLogger.log("Server" + port + " is running...");
-      this.serverStatus.put(port, 0);
+      startServer(port);
+      setStatus(port, 0);
+    }
+    for (int port : this.serverPorts) {
+      pushClusterView(port);
     }
+    detectorExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, centralName + "-detector");
+      thread.setDaemon(true);
+      return thread;
+    });
+    recoveryExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, centralName + "-recovery");
+      thread.setDaemon(true);
+      return thread;
+    });
+    detectorExecutor.scheduleWithFixedDelay(this::checkHeartbeats, heartbeatMs, Math.max(heartbeatMs / 2, 1), TimeUnit.MILLISECONDS);
   }
 
   public static void main(String[] args) throws Exception {
     Logger rmiioLogger = Logger.getLogger("com.healthmarketscience.rmiio");
     rmiioLogger.setLevel(Level.SEVERE);
-    System.out.println("Using default central port: " + DEFAULT_CENTRAL_PORT + ". Server ports: " + Arrays.toString(DEFAULT_SERVER_PORTS));
-    CentralServer centralServer = new CentralServer("127.0.0.1", DEFAULT_CENTRAL_PORT, DEFAULT_SERVER_PORTS);
+    // initial server ports may be given as arguments, more servers can join later
+    int[] serverPorts = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray() : DEFAULT_SERVER_PORTS;
+    System.out.println("Using default central port: " + DEFAULT_CENTRAL_PORT + ". Server ports: " + Arrays.toString(serverPorts));
+    // host of the servers started in this JVM, as reached by servers on other hosts
+    String host = System.getProperty("java.rmi.server.hostname", "127.0.0.1");
+    CentralServer centralServer = new CentralServer(host, DEFAULT_CENTRAL_PORT, serverPorts);
     return;
   }
 
@@ -78,15 +158,70 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
   }
 
   /**
-   * Randomly assign an alive server to client.
+   * Assign an alive server to client with the power of two choices: pick two random alive servers
+   * and keep the least loaded one, which avoids herding every client on the same server between
+   * two heartbeats.
+   *
+   * @return port# of the assigned server, -1 if no server is available (retry later)
    */
   @Override
   public int assignAliveServerToClient() {
-    int serverChosen = generateRandomNumber(serverPorts.length);
-    while (this.serverStatus.get(serverPorts[serverChosen]) != 0) {
-      serverChosen = (serverChosen + 1) % serverPorts.length;
+    List<Integer> candidates = new ArrayList<>();
+    for (int port : serverPorts) {
+      if (getServerStatus(port) == 0) candidates.add(port);
+    }
+    if (candidates.isEmpty()) {
+      serverLogger.log(centralName, "No alive server to assign");
+      return -1;
+    }
+
+    int first = generateRandomNumber(candidates.size());
+    int serverChosen = candidates.get(first);
+    if (candidates.size() > 1) {
+      int second = generateRandomNumber(candidates.size() - 1);
+      if (second >= first) second++;
+      serverChosen = leastLoaded(serverChosen, candidates.get(second));
+    }
+    pendingAssignments.merge(serverChosen, 1, Integer::sum);
+    return serverChosen;
+  }
+
+  /**
+   * Receive the load of a server, sent with every heartbeat
+   *
+   * @param port server port #
+   * @param load current load of the server
+   * @return current epoch, so the server knows when to refetch its cluster view
+   * @throws RemoteException
+   */
+  @Override
+  public long reportLoad(int port, ServerLoad load) throws RemoteException {
+    // server that has not joined yet, or late heartbeat of a killed server
+    if (!isMember(port)) return epoch.get();
+    failureDetector.heartbeat(port, System.currentTimeMillis());
+    serverLoads.put(port, load);
+    pendingAssignments.remove(port);
+    int status = getServerStatus(port);
+    if ((status == 2 || status == 3) && !recovering.contains(port)) readmit(port, status);
+    return epoch.get();
+  }
+
+  /**
+   * Receive the report of a server that did not get a 2PC ack from a peer. The peer is suspected
+   * until its next heartbeat, and catches up before it gets clients again since it may have missed
+   * the commit.
+   *
+   * @param port port# of the peer
+   * @throws RemoteException
+   */
+  @Override
+  public void reportMissedAck(int port) throws RemoteException {
+    if (!isMember(port)) return;
+    // flag before the transition, see markAlive
+    needsCatchUp.add(port);
+    if (compareAndSetStatus(port, 0, 3) || compareAndSetStatus(port, 1, 3)) {
+      serverLogger.log(centralName, "Server" + port + " missed an ack, suspected");
     }
-    return serverPorts[serverChosen];
   }
 
   /**
@@ -99,7 +234,15 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
     try {
       Registry registry = LocateRegistry.getRegistry(slaveServerPort);
       registry.unbind(Server.class.getSimpleName() + slaveServerPort);
-      serverStatus.put(slaveServerPort, 2);
+      Server server = servers.remove(slaveServerPort);
+      if (server != null) {
+        server.unexport();
+        server.stop();
+      }
+      killed.add(slaveServerPort);
+      setStatus(slaveServerPort, 2);
+      serverLoads.remove(slaveServerPort);
+      failureDetector.remove(slaveServerPort);
     } catch (Exception e) {
       e.printStackTrace();
       serverLogger.log(centralName, e.getMessage());
@@ -114,56 +257,231 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
    */
   @Override
   public void restartSlaveServer(int slaveServerPort) throws RemoteException {
-    if (serverStatus.get(slaveServerPort) != 2) return;
-    Server server = new Server(slaveServerPort, centralPort);
-    ServerInterface stub = (ServerInterface) UnicastRemoteObject.exportObject(server, 0);
-    Registry registry = LocateRegistry.getRegistry(slaveServerPort);
-    registry.rebind(Server.class.getSimpleName() + slaveServerPort, stub);
+    if (getServerStatus(slaveServerPort) != 2) return;
+    if (!killed.contains(slaveServerPort)) {
+      // declared dead by the failure detector but still running, re-admitted on its next heartbeat
+      serverLogger.log(centralName, "Server" + slaveServerPort + " is still running.");
+      return;
+    }
+    recovering.add(slaveServerPort);
+    try {
+      startServer(slaveServerPort);
+      killed.remove(slaveServerPort);
+      pushClusterView(slaveServerPort);
+
+      needsCatchUp.remove(slaveServerPort);
+      if (recoverServer(slaveServerPort)) {
+        markAlive(slaveServerPort, 2);
+      } else {
+        needsCatchUp.add(slaveServerPort);
+      }
+    } finally {
+      recovering.remove(slaveServerPort);
+    }
+  }
 
+  /**
+   * Assign a live server as helper to bring a server up to date
+   *
+   * @param slaveServerPort port# of the server to recover
+   * @return true if the data was recovered
+   */
+  private boolean recoverServer(int slaveServerPort) {
+    int helperPort = getHelperPort(slaveServerPort);
+    if (helperPort < 0) return false;
+    try {
+      serverLogger.log(centralName, "Assign Server" + helperPort +
+              " to help Server " + slaveServerPort + " recover data.");
+      return lookupServer(helperPort).helpRecoverData(getHost(slaveServerPort), slaveServerPort);
+    } catch (Exception e) {
+      e.printStackTrace();
+      serverLogger.log(centralName, e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Let a running server replay the transactions it missed from a live server, without replacing
+   * its databases. Falls back to a full recovery if the helper no longer logs all of them.
+   *
+   * @param slaveServerPort port# of the server to catch up
+   * @return true if the server is up to date
+   */
+  private boolean catchUpServer(int slaveServerPort) {
+    int helperPort = getHelperPort(slaveServerPort);
+    if (helperPort < 0) return false;
+    try {
+      if (lookupServer(slaveServerPort).catchUp(helperPort)) return true;
+    } catch (Exception e) {
+      serverLogger.log(centralName, e.getMessage());
+      return false;
+    }
+    return recoverServer(slaveServerPort);
+  }
+
+  /**
+   * Get a live server to help another one recover
+   *
+   * @param slaveServerPort port# of the server to recover
+   * @return port# of the helper, -1 if no server is alive
+   */
+  private int getHelperPort(int slaveServerPort) {
     for (int serverPort : serverPorts) {
-      if (serverPort == slaveServerPort) continue;
-      if (getServerStatus(serverPort) == 0) {
-        try {
-          serverLogger.log(centralName, "Assign Server" + serverPort +
-                  " to help Server " + slaveServerPort + " recover data.");
-          registry = LocateRegistry.getRegistry(serverPort);
-          ServerInterface aliveServer = (ServerInterface) registry.lookup("Server" + serverPort);
-          aliveServer.helpRecoverData(slaveServerPort);
-          serverStatus.put(slaveServerPort, 0);
-          return;
-        } catch (Exception e) {
-          e.printStackTrace();
-          serverLogger.log(centralName, e.getMessage());
-          return;
+      if (serverPort != slaveServerPort && getServerStatus(serverPort) == 0) return serverPort;
+    }
+    serverLogger.log(centralName, "No alive slave server found. Data recovery failed.");
+    return -1;
+  }
+
+  /**
+   * Move servers whose heartbeats stopped to suspected, then to dead. Runs periodically on the
+   * detector thread.
+   */
+  private void checkHeartbeats() {
+    long now = System.currentTimeMillis();
+    for (int port : serverPorts) {
+      if (recovering.contains(port) || killed.contains(port)) continue;
+      int status = getServerStatus(port);
+      double phi = failureDetector.phi(port, now);
+      if ((status == 0 || status == 1) && phi >= suspectPhi) {
+        // a heartbeat may have re-admitted the server in the meantime
+        if (compareAndSetStatus(port, status, 3)) {
+          serverLogger.log(centralName, "Server" + port + " is suspected, phi = " + String.format("%.1f", phi));
+        }
+      } else if (status == 3 && phi >= deadPhi) {
+        // it may miss commits from now on, it is recovered before it is re-admitted
+        needsCatchUp.add(port);
+        if (compareAndSetStatus(port, 3, 2)) {
+          serverLogger.log(centralName, "Server" + port + " is down!");
         }
       }
     }
-    serverLogger.log(centralName, "No alive slave server found. Data recovery failed.");
+  }
+
+  /**
+   * Re-admit a suspected or dead server that sent a heartbeat. A server that may have missed
+   * commits replays them from a peer first, on a recovery thread: the detector thread keeps checking
+   * the heartbeats of the other servers meanwhile.
+   *
+   * @param port   server port #
+   * @param status status the heartbeat was received in, 2 or 3
+   */
+  private void readmit(int port, int status) {
+    if (!needsCatchUp.contains(port)) {
+      if (markAlive(port, status)) serverLogger.log(centralName, "Server" + port + " is alive again.");
+      return;
+    }
+    // one recovery at a time per server
+    if (!recovering.add(port)) return;
+    recoveryExecutor.execute(() -> {
+      try {
+        needsCatchUp.remove(port);
+        if (catchUpServer(port) && (markAlive(port, 2) || markAlive(port, 3))) {
+          serverLogger.log(centralName, "Server" + port + " caught up and is alive again.");
+        } else {
+          needsCatchUp.add(port);
+        }
+      } finally {
+        recovering.remove(port);
+      }
+    });
+  }
+
+  /**
+   * Move a server to empty, then back to suspected if it missed an ack meanwhile: reportMissedAck
+   * flags before its transition and this checks the flag after, so a missed ack is never lost.
+   *
+   * @param port           server port #
+   * @param expectedStatus current status of the server
+   * @return true if the server is alive
+   */
+  private boolean markAlive(int port, int expectedStatus) {
+    if (!compareAndSetStatus(port, expectedStatus, 0)) return false;
+    return !needsCatchUp.contains(port) || !compareAndSetStatus(port, 0, 3);
   }
 
   /**
    * Get the server status
    *
    * @param port server port #
-   * @return 0 -> empty, 1 -> busy, 2 -> dead, -1 -> Not found
-   * @throws RemoteException
+   * @return 0 -> empty, 1 -> busy, 2 -> dead, 3 -> suspected, -1 -> Not found
    */
   @Override
-  public int getServerStatus(int port) throws RemoteException {
-    if (serverStatus.get(port) == null) return -1;
-    return serverStatus.get(port);
+  public int getServerStatus(int port) {
+    return serverStatus.getOrDefault(port, -1);
   }
 
   /**
    * Set server status as input
    *
    * @param port   server port #
-   * @param status 0 -> empty, 1 -> busy, 2 -> dead
+   * @param status 0 -> empty, 1 -> busy, 2 -> dead, 3 -> suspected
    * @throws RemoteException
    */
   @Override
   public void setServerStatus(int port, int status) throws RemoteException {
-    serverStatus.put(port, status);
+    setStatus(port, status);
+  }
+
+  /**
+   * Atomically set the server status if it is the expected one, so a caller does not need to read
+   * it first
+   *
+   * @param port           server port #
+   * @param expectedStatus status the server must be in
+   * @param newStatus      0 -> empty, 1 -> busy, 2 -> dead, 3 -> suspected
+   * @return true if the status was set
+   */
+  @Override
+  public boolean compareAndSetStatus(int port, int expectedStatus, int newStatus) {
+    if (!serverStatus.replace(port, expectedStatus, newStatus)) return false;
+    if (expectedStatus != newStatus) epoch.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Get the ports and statuses of all servers in one call
+   *
+   * @return current cluster view
+   * @throws RemoteException
+   */
+  @Override
+  public ClusterView getClusterView() throws RemoteException {
+    // read the epoch first: the statuses are at least as recent as the epoch they are tagged with
+    long currentEpoch = epoch.get();
+    long currentMembershipEpoch = membershipEpoch.get();
+    int[] ports = serverPorts.clone();
+    String[] hosts = new String[ports.length];
+    int[] statuses = new int[ports.length];
+    for (int i = 0; i < ports.length; i++) {
+      hosts[i] = getHost(ports[i]);
+      statuses[i] = getServerStatus(ports[i]);
+    }
+    return new ClusterView(currentEpoch, currentMembershipEpoch, ports, hosts, statuses);
+  }
+
+  /**
+   * Get the cluster view only if it changed since a known epoch
+   *
+   * @param knownEpoch epoch of the view cached by the caller
+   * @return current cluster view, null if nothing changed since knownEpoch
+   * @throws RemoteException
+   */
+  @Override
+  public ClusterView getClusterViewSince(long knownEpoch) throws RemoteException {
+    if (epoch.get() == knownEpoch) return null;
+    return getClusterView();
+  }
+
+  /**
+   * Set the status of a server, bumping the epoch if it changed
+   *
+   * @param port   server port #
+   * @param status 0 -> empty, 1 -> busy, 2 -> dead, 3 -> suspected
+   */
+  private void setStatus(int port, int status) {
+    Integer previous = serverStatus.put(port, status);
+    if (previous == null || previous != status) epoch.incrementAndGet();
   }
 
   /**
@@ -186,15 +504,216 @@ public class CentralServer extends UnicastRemoteObject implements CentralServerI
    * @throws RemoteException
    */
   @Override
-  public int[] getPeers(int toPort) throws RemoteException {
-    int[] peers = new int[serverPorts.length - 1];
-    int i = 0;
-    for (int serverPort : serverPorts) {
-      if (serverPort == toPort) continue;
-      peers[i] = serverPort;
-      i++;
+  public int[] getPeers(int toPort) {
+    return Arrays.stream(serverPorts).filter(serverPort -> serverPort != toPort).toArray();
+  }
+
+  /**
+   * Start a server in this JVM and bind it in its registry
+   *
+   * @param port port# for the server
+   * @throws RemoteException
+   */
+  private void startServer(int port) throws RemoteException {
+    Server server = new Server(port, host, centralPort);
+    ServerInterface stub = server.export();
+    Registry registry;
+    try {
+      registry = LocateRegistry.createRegistry(port);
+    } catch (ExportException e) {
+      // the registry of a server previously started on this port
+      registry = LocateRegistry.getRegistry(port);
+    }
+    registry.rebind(Server.class.getSimpleName() + port, stub);
+    servers.put(port, server);
+    serverLogger.log("Server" + port + " is running...");
+  }
+
+  /**
+   * Start a new server in this JVM and add it to the cluster, see registerServer
+   *
+   * @param port port# for the new server
+   * @return true if the server joined
+   * @throws RemoteException
+   */
+  @Override
+  public boolean addServer(int port) throws RemoteException {
+    // checked and started under the lock, a concurrent add of the same port must not start another server
+    synchronized (membershipLock) {
+      if (serverStatus.containsKey(port) || servers.containsKey(port)) return false;
+      startServer(port);
+      if (registerServer(host, port)) return true;
+      stopServer(port);
+      return false;
+    }
+  }
+
+  /**
+   * Add a running server to the cluster, e.g. one started in its own JVM on another host. The server
+   * gets the data of a live peer while it is not a member yet, then joins the 2PC and catches up with
+   * the commits it missed meanwhile, and only then gets clients.
+   *
+   * @param host host of the new server
+   * @param port port# of the new server, bound in its registry
+   * @return true if the server joined
+   * @throws RemoteException
+   */
+  @Override
+  public boolean registerServer(String host, int port) throws RemoteException {
+    synchronized (membershipLock) {
+      if (serverStatus.containsKey(port)) {
+        serverLogger.log(centralName, "Server" + port + " is already a member.");
+        return false;
+      }
+      recovering.add(port);
+      serverHosts.put(port, host);
+      try {
+        // the new server learns where its peers are, it does not coordinate until it is a member
+        pushClusterView(port);
+        boolean hasAliveServer = Arrays.stream(serverPorts).anyMatch(serverPort -> getServerStatus(serverPort) == 0);
+        // the first server of an empty cluster has nothing to recover
+        if (hasAliveServer && !recoverServer(port)) {
+          serverHosts.remove(port);
+          return false;
+        }
+
+        setStatus(port, 2);
+        int[] members = Arrays.copyOf(serverPorts, serverPorts.length + 1);
+        members[members.length - 1] = port;
+        serverPorts = members;
+        membershipEpoch.incrementAndGet();
+        epoch.incrementAndGet();
+        for (int serverPort : members) {
+          pushClusterView(serverPort);
+        }
+
+        // commits prepared before the peers learnt about the new server are replayed, the databases
+        // are not replaced now that the server takes part in the 2PC
+        if (hasAliveServer && !catchUpServer(port)) needsCatchUp.add(port);
+        markAlive(port, 2);
+        serverLogger.log(centralName, "Server" + port + " joined the cluster.");
+        return true;
+      } finally {
+        recovering.remove(port);
+      }
+    }
+  }
+
+  /**
+   * Remove a server from the cluster. Its peers stop sending it transactions and reject the ones it
+   * still coordinates, and it gets no new clients; a server started in this JVM is also stopped.
+   *
+   * @param port port# of the server
+   * @return true if the server was a member
+   * @throws RemoteException
+   */
+  @Override
+  public boolean deregisterServer(int port) throws RemoteException {
+    synchronized (membershipLock) {
+      if (!serverStatus.containsKey(port)) return false;
+      serverPorts = Arrays.stream(serverPorts).filter(serverPort -> serverPort != port).toArray();
+      serverStatus.remove(port);
+      membershipEpoch.incrementAndGet();
+      epoch.incrementAndGet();
+      for (int serverPort : serverPorts) {
+        pushClusterView(serverPort);
+      }
+      // the removed server learns it is no longer a member and stops coordinating transactions
+      pushClusterView(port);
+      serverHosts.remove(port);
+      serverLoads.remove(port);
+      pendingAssignments.remove(port);
+      failureDetector.remove(port);
+      needsCatchUp.remove(port);
+      killed.remove(port);
+      stopServer(port);
+      serverLogger.log(centralName, "Server" + port + " left the cluster.");
+      return true;
+    }
+  }
+
+  /**
+   * Stop a server started in this JVM, if any
+   *
+   * @param port server port #
+   */
+  private void stopServer(int port) {
+    Server server = servers.remove(port);
+    if (server == null) return;
+    try {
+      LocateRegistry.getRegistry(port).unbind(Server.class.getSimpleName() + port);
+      server.unexport();
+    } catch (Exception e) {
+      serverLogger.log(centralName, e.getMessage());
+    }
+    server.stop();
+  }
+
+  /**
+   * Whether a server is a member of the cluster and was not killed
+   *
+   * @param port server port #
+   * @return true if its heartbeats count
+   */
+  private boolean isMember(int port) {
+    return serverStatus.containsKey(port) && !killed.contains(port);
+  }
+
+  /**
+   * Push the current cluster view to a server so that it does not need to ask for its peers on
+   * every transaction
+   *
+   * @param port server port #
+   */
+  private void pushClusterView(int port) {
+    try {
+      lookupServer(port).updateClusterView(getClusterView());
+    } catch (Exception e) {
+      serverLogger.log(centralName, e.getMessage());
     }
-    return peers;
+  }
+
+  /**
+   * Look up a server in its registry, on its own host
+   *
+   * @param port server port #
+   * @return stub of the server
+   * @throws RemoteException   if the registry cannot be reached
+   * @throws NotBoundException if the server is not bound
+   */
+  private ServerInterface lookupServer(int port) throws RemoteException, NotBoundException {
+    Registry registry = LocateRegistry.getRegistry(getHost(port), port);
+    return (ServerInterface) registry.lookup(Server.class.getSimpleName() + port);
+  }
+
+  /**
+   * Get the host of a server
+   *
+   * @param port server port #
+   * @return host of the server, the central server host for unknown servers
+   */
+  private String getHost(int port) {
+    return serverHosts.getOrDefault(port, host);
+  }
+
+  /**
+   * Compare the reported load of two servers: in-flight requests plus sessions plus the clients
+   * assigned since the last heartbeat, then the request latency.
+   *
+   * @param port1 server port #
+   * @param port2 server port #
+   * @return port# of the least loaded server
+   */
+  private int leastLoaded(int port1, int port2) {
+    ServerLoad load1 = serverLoads.get(port1);
+    ServerLoad load2 = serverLoads.get(port2);
+    // a server that has not reported yet is assumed idle
+    if (load1 == null) return port1;
+    if (load2 == null) return port2;
+    int score1 = load1.getInFlightRequests() + load1.getActiveSessions() + pendingAssignments.getOrDefault(port1, 0);
+    int score2 = load2.getInFlightRequests() + load2.getActiveSessions() + pendingAssignments.getOrDefault(port2, 0);
+    if (score1 != score2) return score1 < score2 ? port1 : port2;
+    return load1.getLatencyMs() <= load2.getLatencyMs() ? port1 : port2;
   }
 
   /**
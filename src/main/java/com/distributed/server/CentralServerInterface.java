@@ -1,5 +1,8 @@
 package com.distributed.server;
 
+import com.distributed.model.ClusterView;
+import com.distributed.model.ServerLoad;
+
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
@@ -20,7 +23,23 @@ public interface CentralServerInterface extends Remote {
 
   void setServerStatus(int port, int status) throws RemoteException;
 
+  boolean compareAndSetStatus(int port, int expectedStatus, int newStatus) throws RemoteException;
+
+  ClusterView getClusterView() throws RemoteException;
+
+  ClusterView getClusterViewSince(long knownEpoch) throws RemoteException;
+
   void receiveNotification(String message) throws RemoteException;
 
   int[] getPeers(int toPort) throws RemoteException;
+
+  long reportLoad(int port, ServerLoad load) throws RemoteException;
+
+  void reportMissedAck(int port) throws RemoteException;
+
+  boolean addServer(int port) throws RemoteException;
+
+  boolean registerServer(String host, int port) throws RemoteException;
+
+  boolean deregisterServer(int port) throws RemoteException;
 }
@@ -0,0 +1,258 @@
+package com.distributed.server;
+
+import com.distributed.model.Document;
+import com.distributed.model.Section;
+import com.distributed.model.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * DatabaseSnapshot.java
+ * <p>
+ * Implements the binary snapshot format of the user and document databases:
+ * [magic][version][type] followed by length-prefixed records, an end marker and the CRC32 of
+ * everything before it. The header also holds the last commit log position the snapshot covers.
+ * Snapshots of version 1, written before documents and sections had versions, and of version 2,
+ * written before they were tagged with a log position, are still readable. Records are streamed one at a time in both directions. Section occupants
+ * are not stored since editing sessions do not survive a restart.
+ *
+ * @version 2020-4-21
+ */
+public class DatabaseSnapshot {
+  private static final int MAGIC = 0x44534E50;
+  // version 2 adds the document and section versions, version 3 the log position
+  private static final short VERSION = 3;
+  private static final short MIN_VERSION = 1;
+  private static final byte USER_SNAPSHOT = 1;
+  private static final byte DOCUMENT_SNAPSHOT = 2;
+  private static final int END_OF_RECORDS = -1;
+
+  private DatabaseSnapshot() {
+  }
+
+  /**
+   * Writes the user database to a temp file and atomically renames it over the target path.
+   *
+   * @param userDatabase user database
+   * @param logPosition  last commit log position applied to the database
+   * @param path         snapshot path
+   * @throws IOException if an I/O error occurs
+   */
+  static void writeUsers(UserDatabase userDatabase, long logPosition, String path) throws IOException {
+    write(path, USER_SNAPSHOT, logPosition, output -> {
+      for (User user : userDatabase.getUsers()) {
+        writeRecord(output, encodeUser(user));
+      }
+    });
+  }
+
+  /**
+   * Writes the document database to a temp file and atomically renames it over the target path.
+   *
+   * @param documentDatabase document database
+   * @param logPosition      last commit log position applied to the database
+   * @param path             snapshot path
+   * @throws IOException if an I/O error occurs
+   */
+  static void writeDocuments(DocumentDatabase documentDatabase, long logPosition, String path) throws IOException {
+    write(path, DOCUMENT_SNAPSHOT, logPosition, output -> {
+      for (Document document : documentDatabase.getDocuments()) {
+        writeRecord(output, encodeDocument(document));
+      }
+    });
+  }
+
+  /**
+   * Reads a user database snapshot.
+   *
+   * @param path snapshot path
+   * @return the user database
+   * @throws IOException if the snapshot is missing, of another version or corrupted
+   */
+  static UserDatabase readUsers(String path) throws IOException {
+    UserDatabase userDatabase = new UserDatabase();
+    read(path, USER_SNAPSHOT, (payload, version) -> userDatabase.restoreUser(decodeUser(payload)));
+    return userDatabase;
+  }
+
+  /**
+   * Reads a document database snapshot.
+   *
+   * @param path snapshot path
+   * @return the document database
+   * @throws IOException if the snapshot is missing, of another version or corrupted
+   */
+  static DocumentDatabase readDocuments(String path) throws IOException {
+    DocumentDatabase documentDatabase = new DocumentDatabase();
+    read(path, DOCUMENT_SNAPSHOT, (payload, version) -> documentDatabase.restoreDocument(decodeDocument(payload, version)));
+    return documentDatabase;
+  }
+
+  /**
+   * Reads the last commit log position a snapshot covers. The checksum is verified when the
+   * snapshot itself is read.
+   *
+   * @param path snapshot path
+   * @return log position, -1 if the snapshot is not tagged with one
+   * @throws IOException if the snapshot is missing or of another version
+   */
+  static long readLogPosition(String path) throws IOException {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+      if (input.readInt() != MAGIC) throw new IOException("Not a database snapshot: " + path);
+      short version = input.readShort();
+      if (version < MIN_VERSION || version > VERSION) throw new IOException("Unsupported snapshot version: " + path);
+      input.readByte();
+      return version >= 3 ? input.readLong() : -1;
+    }
+  }
+
+  private interface RecordWriter {
+    void writeAll(DataOutputStream output) throws IOException;
+  }
+
+  private interface RecordReader {
+    void read(byte[] payload, short version) throws IOException;
+  }
+
+  private static void write(String path, byte type, long logPosition, RecordWriter recordWriter) throws IOException {
+    File tempFile = new File(path + ".tmp");
+    try (FileOutputStream fileOutput = new FileOutputStream(tempFile)) {
+      CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(fileOutput), new CRC32());
+      DataOutputStream output = new DataOutputStream(checkedOutput);
+      output.writeInt(MAGIC);
+      output.writeShort(VERSION);
+      output.writeByte(type);
+      output.writeLong(logPosition);
+      recordWriter.writeAll(output);
+      output.writeInt(END_OF_RECORDS);
+      output.writeLong(checkedOutput.getChecksum().getValue());
+      output.flush();
+      fileOutput.getFD().sync();
+    }
+    Files.move(tempFile.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void read(String path, byte type, RecordReader recordReader) throws IOException {
+    try (CheckedInputStream checkedInput = new CheckedInputStream(new BufferedInputStream(new FileInputStream(path)), new CRC32());
+         DataInputStream input = new DataInputStream(checkedInput)) {
+      if (input.readInt() != MAGIC) throw new IOException("Not a database snapshot: " + path);
+      short version = input.readShort();
+      if (version < MIN_VERSION || version > VERSION) throw new IOException("Unsupported snapshot version: " + path);
+      if (input.readByte() != type) throw new IOException("Unexpected snapshot type: " + path);
+      if (version >= 3) input.readLong();
+      int length;
+      while ((length = input.readInt()) != END_OF_RECORDS) {
+        if (length < 0) throw new IOException("Corrupted snapshot: " + path);
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        recordReader.read(payload, version);
+      }
+      long checksum = checkedInput.getChecksum().getValue();
+      if (input.readLong() != checksum) throw new IOException("Snapshot checksum mismatch: " + path);
+    }
+  }
+
+  private static void writeRecord(DataOutputStream output, byte[] payload) throws IOException {
+    output.writeInt(payload.length);
+    output.write(payload);
+  }
+
+  private static byte[] encodeUser(User user) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeUTF(user.getUsername());
+      writeNullableString(output, user.getPassword());
+      List<String> notifications = user.getNotifications() == null ? new ArrayList<>() : new ArrayList<>(user.getNotifications());
+      output.writeInt(notifications.size());
+      for (String notification : notifications) {
+        output.writeUTF(notification);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static User decodeUser(byte[] payload) throws IOException {
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+      User user = new User(input.readUTF());
+      user.setPassword(readNullableString(input));
+      int notificationCount = input.readInt();
+      for (int i = 0; i < notificationCount; i++) {
+        user.pushNewNotification(input.readUTF());
+      }
+      return user;
+    }
+  }
+
+  private static byte[] encodeDocument(Document document) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeUTF(document.getName());
+      output.writeLong(document.getVersion());
+      output.writeUTF(document.getCreator().getUsername());
+      List<User> authors = new ArrayList<>(document.getAuthors());
+      output.writeInt(authors.size());
+      for (User author : authors) {
+        output.writeUTF(author.getUsername());
+      }
+      List<Section> sections = document.getSections();
+      output.writeInt(sections.size());
+      for (Section section : sections) {
+        output.writeUTF(section.getPath());
+        output.writeLong(section.getVersion());
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Document decodeDocument(byte[] payload, short version) throws IOException {
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+      String name = input.readUTF();
+      // version 1 snapshots carry no versions, documents and sections restart from 0
+      long documentVersion = version >= 2 ? input.readLong() : 0;
+      User creator = new User(input.readUTF());
+      int authorCount = input.readInt();
+      List<User> authors = new ArrayList<>(authorCount);
+      for (int i = 0; i < authorCount; i++) {
+        authors.add(new User(input.readUTF()));
+      }
+      int sectionCount = input.readInt();
+      List<Section> sections = new ArrayList<>(sectionCount);
+      for (int i = 0; i < sectionCount; i++) {
+        Section section = Section.fromPath(input.readUTF());
+        if (version >= 2) section.setVersion(input.readLong());
+        sections.add(section);
+      }
+      Document document = new Document(name, creator, sections);
+      document.setVersion(documentVersion);
+      for (User author : authors) {
+        document.addAuthor(author);
+      }
+      return document;
+    }
+  }
+
+  private static void writeNullableString(DataOutputStream output, String value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) output.writeUTF(value);
+  }
+
+  private static String readNullableString(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+}
@@ -4,31 +4,48 @@ import com.distributed.model.Document;
 import com.distributed.model.User;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * DocumentDatabase.java
- * Implements data structure and methods for document database.
+ * Implements data structure and methods for document database. Documents are indexed by name, and
+ * the names of the documents each user can access are indexed by username. The serialized form is
+ * still the original document list so that existing DocDB.dat files keep loading.
  *
  * @version 2020-4-21
  */
 public class DocumentDatabase implements Serializable {
   private static final long serialVersionUID = 1L;
-  private List<Document> documents;
+  // serialized form of the original list based database
+  private static final ObjectStreamField[] serialPersistentFields = {
+          new ObjectStreamField("documents", List.class)
+  };
+  // document name -> document
+  private transient ConcurrentMap<String, Document> documents;
+  // username -> names of the documents the user created or was shared
+  private transient ConcurrentMap<String, Set<String>> accessibleDocuments;
 
   /**
-   * Initializes the internal document's ArrayList.
+   * Initializes the internal document indexes.
    */
   public DocumentDatabase() {
-    documents = new ArrayList<>();
+    documents = new ConcurrentHashMap<>();
+    accessibleDocuments = new ConcurrentHashMap<>();
   }
 
   /**
    * Creates a new {@code Document} adding it directly to the DocumentsDatabase.
    *
-   * @param path           new document file path
+   * @param path           prefix of the section paths, "" for paths relative to the data directory
    * @param sectionsNumber new document sections number
    * @param name           new document's name
    * @param creator        new document's owner
@@ -39,9 +56,8 @@ public class DocumentDatabase implements Serializable {
       Document document;
       if (alreadyExists(name)) throw new IOException("Document already exists");
       else document = Document.create(creator, path, sectionsNumber, name);
-      synchronized (documents) {
-        documents.add(document);
-      }
+      if (documents.putIfAbsent(name, document) != null) throw new IOException("Document already exists");
+      grantAccess(creator, name);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -63,11 +79,23 @@ public class DocumentDatabase implements Serializable {
    * @return the document reference or null if it does not exists yet
    */
   Document getDocumentByName(String documentName) {
-    synchronized (documents) {
-      for (Document d : documents)
-        if (d.getName().compareTo(documentName) == 0) return d;
-      return null;
-    }
+    if (documentName == null) return null;
+    return documents.get(documentName);
+  }
+
+  /**
+   * Shares a document with a user, adding the user to its authors.
+   *
+   * @param documentName document's name
+   * @param user         user reference
+   * @return false if the document does not exist, true otherwise
+   */
+  boolean shareDocument(String documentName, User user) {
+    Document document = getDocumentByName(documentName);
+    if (document == null) return false;
+    document.addAuthor(user);
+    grantAccess(user, documentName);
+    return true;
   }
 
   /**
@@ -77,20 +105,59 @@ public class DocumentDatabase implements Serializable {
    * @return accessible file names
    */
   String[] getAllDocumentsNames(User user) {
-    List<String> nameList = new ArrayList<>();
-    synchronized (documents) {
-      for (Document d : documents)
-        if (d.hasPermit(user))
-          nameList.add(d.getName());
-    }
-    return nameList.toArray(new String[0]);
+    Set<String> names = accessibleDocuments.getOrDefault(user.getUsername(), Collections.emptySet());
+    return names.toArray(new String[0]);
   }
 
   List<Document> getDocuments() {
-    return this.documents;
+    return new ArrayList<>(documents.values());
+  }
+
+  void setDocuments(List<Document> documents) {
+    this.documents = new ConcurrentHashMap<>();
+    this.accessibleDocuments = new ConcurrentHashMap<>();
+    for (Document document : documents) {
+      restoreDocument(document);
+    }
   }
 
-   void setDocuments(List<Document> documents) {
-    this.documents = documents;
+  /**
+   * Stores a document loaded from a snapshot and indexes its creator and authors.
+   *
+   * @param document document reference
+   */
+  void restoreDocument(Document document) {
+    documents.put(document.getName(), document);
+    grantAccess(document.getCreator(), document.getName());
+    for (User author : document.getAuthors()) {
+      grantAccess(author, document.getName());
+    }
+  }
+
+  /**
+   * Adds a document to the accessible documents of a user.
+   */
+  private void grantAccess(User user, String documentName) {
+    accessibleDocuments.computeIfAbsent(user.getUsername(), k -> ConcurrentHashMap.newKeySet())
+            .add(documentName);
+  }
+
+  /**
+   * Writes the documents as the original list based form.
+   */
+  private void writeObject(ObjectOutputStream output) throws IOException {
+    ObjectOutputStream.PutField fields = output.putFields();
+    fields.put("documents", getDocuments());
+    output.writeFields();
+  }
+
+  /**
+   * Reads the original list based form and rebuilds the indexes.
+   */
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = input.readFields();
+    List<Document> storedDocuments = (List<Document>) fields.get("documents", null);
+    setDocuments(storedDocuments == null ? new ArrayList<>() : storedDocuments);
   }
 }
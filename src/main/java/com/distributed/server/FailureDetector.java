@@ -0,0 +1,87 @@
+package com.distributed.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * FailureDetector.java
+ * <p>
+ * Implements a phi accrual failure detector over the server heartbeats. Instead of a fixed timeout,
+ * each server gets a suspicion level phi that grows with the time since its last heartbeat relative
+ * to its usual heartbeat interval, so a slow but regular server is not mistaken for a dead one.
+ * Heartbeat intervals are assumed exponentially distributed: phi = -log10(P(interval > elapsed)).
+ *
+ * @version 2020-4-21
+ */
+public class FailureDetector {
+  // number of heartbeat intervals the mean is computed over
+  private static final int WINDOW_SIZE = 100;
+  private final long expectedIntervalMs;
+  private final Map<Integer, History> histories;
+
+  /**
+   * Heartbeat arrival history of one server
+   */
+  private static class History {
+    private final Deque<Long> intervals = new ArrayDeque<>();
+    private long intervalSum;
+    private long lastHeartbeatMs;
+  }
+
+  /**
+   * Constructor
+   *
+   * @param expectedIntervalMs heartbeat period of the servers, used until intervals are measured
+   */
+  FailureDetector(long expectedIntervalMs) {
+    this.expectedIntervalMs = expectedIntervalMs;
+    this.histories = new HashMap<>();
+  }
+
+  /**
+   * Records a heartbeat.
+   *
+   * @param port  server port #
+   * @param nowMs arrival time
+   */
+  synchronized void heartbeat(int port, long nowMs) {
+    History history = histories.get(port);
+    if (history == null) {
+      history = new History();
+      histories.put(port, history);
+    } else {
+      long interval = nowMs - history.lastHeartbeatMs;
+      history.intervals.addLast(interval);
+      history.intervalSum += interval;
+      if (history.intervals.size() > WINDOW_SIZE) history.intervalSum -= history.intervals.removeFirst();
+    }
+    history.lastHeartbeatMs = nowMs;
+  }
+
+  /**
+   * Gets the suspicion level of a server.
+   *
+   * @param port  server port #
+   * @param nowMs current time
+   * @return phi, 0 if no heartbeat was ever received
+   */
+  synchronized double phi(int port, long nowMs) {
+    History history = histories.get(port);
+    if (history == null) return 0;
+    double meanIntervalMs = history.intervals.isEmpty()
+            ? expectedIntervalMs : (double) history.intervalSum / history.intervals.size();
+    long elapsedMs = nowMs - history.lastHeartbeatMs;
+    return elapsedMs / Math.max(meanIntervalMs, 1) * Math.log10(Math.E);
+  }
+
+  /**
+   * Forgets the history of a server, e.g. when it is killed on purpose.
+   *
+   * @param port server port #
+   */
+  synchronized void remove(int port) {
+    histories.remove(port);
+  }
+}
@@ -0,0 +1,97 @@
+package com.distributed.server;
+
+import com.distributed.model.Document;
+import com.distributed.model.Section;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileSectionStore.java
+ * <p>
+ * Implements the default section storage: one directory per document and one file per section,
+ * DATA_DIR/DOCUMENT/sectionN. The most read sections are served from a {@link SectionCache}.
+ *
+ * @version 2020-4-21
+ */
+public class FileSectionStore implements SectionStore {
+  private final String dataDir;
+  private final SectionCache sectionCache;
+
+  /**
+   * Constructor
+   *
+   * @param dataDir      directory of the document directories
+   * @param sectionCache cache of the section contents
+   */
+  FileSectionStore(String dataDir, SectionCache sectionCache) {
+    this.dataDir = dataDir;
+    this.sectionCache = sectionCache;
+  }
+
+  @Override
+  public void create(Document document) throws IOException {
+    for (int i = 0; i < document.getSections().size(); i++) {
+      File sectionFile = getSectionPath(document, i).toFile();
+      sectionFile.getParentFile().mkdirs();
+      sectionFile.createNewFile();
+    }
+  }
+
+  @Override
+  public boolean contains(Document document, int sectionNum) {
+    return getSectionPath(document, sectionNum).toFile().isFile();
+  }
+
+  @Override
+  public SectionContent open(Document document, int sectionNum) throws IOException {
+    Section section = document.getSectionByIndex(sectionNum);
+    Path sectionPath = getSectionPath(document, sectionNum);
+    ByteBuffer cached = sectionCache.get(SectionStore.getKey(document.getName(), sectionNum), section.getVersion(), sectionPath);
+    if (cached != null) return SectionContent.of(cached);
+    return SectionContent.of(FileChannel.open(sectionPath, StandardOpenOption.READ));
+  }
+
+  @Override
+  public void replace(Document document, int sectionNum, Path content) throws IOException {
+    // readers that already opened the section keep reading the previous content
+    Path sectionPath = getSectionPath(document, sectionNum);
+    Files.createDirectories(sectionPath.getParent());
+    Files.move(content, sectionPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(sectionPath.getParent());
+    sectionCache.invalidate(SectionStore.getKey(document.getName(), sectionNum));
+  }
+
+  @Override
+  public void delete(Document document) throws IOException {
+    for (int i = 0; i < document.getSections().size(); i++) {
+      Files.deleteIfExists(getSectionPath(document, i));
+      sectionCache.invalidate(SectionStore.getKey(document.getName(), i));
+    }
+    Files.deleteIfExists(Paths.get(dataDir + document.getName()));
+  }
+
+  private Path getSectionPath(Document document, int sectionNum) {
+    return Paths.get(dataDir + SectionStore.getKey(document.getName(), sectionNum));
+  }
+
+  /**
+   * Flush a rename in a directory to disk
+   *
+   * @param directory directory of the renamed file
+   */
+  static void syncDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // directories cannot be opened on every platform, the rename is atomic anyway
+    }
+  }
+}
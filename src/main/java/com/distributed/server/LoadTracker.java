@@ -0,0 +1,109 @@
+package com.distributed.server;
+
+import com.distributed.model.Result;
+import com.distributed.model.ServerLoad;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * LoadTracker.java
+ * <p>
+ * Tracks the load of a server: client requests in flight, users logged in through it and an
+ * exponentially weighted moving average of the request latency. Sent to the central server with
+ * every heartbeat so that it can assign clients to the least loaded server. Client requests are the
+ * calls returning a {@link Result}, counted by a proxy around the exported server.
+ *
+ * @version 2020-4-21
+ */
+public class LoadTracker {
+  // weight of the latest request in the latency average
+  private static final double LATENCY_WEIGHT = 0.2;
+  private final AtomicInteger inFlightRequests;
+  private final Set<String> sessions;
+  private volatile double latencyMs;
+
+  /**
+   * Constructor
+   */
+  LoadTracker() {
+    this.inFlightRequests = new AtomicInteger();
+    this.sessions = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Wraps a remote object so that its client requests are tracked.
+   *
+   * @param target remote object
+   * @param type   remote interface of the target
+   * @return proxy implementing the remote interface
+   */
+  <T> T track(T target, Class<T> type) {
+    Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (object, method, args) -> {
+      boolean clientRequest = method.getReturnType() == Result.class;
+      long startNanos = clientRequest ? begin() : 0;
+      try {
+        return method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      } finally {
+        if (clientRequest) end(startNanos);
+      }
+    });
+    return type.cast(proxy);
+  }
+
+  /**
+   * Marks the start of a client request.
+   *
+   * @return start time, to be passed to {@link #end(long)}
+   */
+  private long begin() {
+    inFlightRequests.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Marks the end of a client request.
+   *
+   * @param startNanos value returned by {@link #begin()}
+   */
+  private void end(long startNanos) {
+    inFlightRequests.decrementAndGet();
+    double elapsedMs = (System.nanoTime() - startNanos) / 1e6;
+    synchronized (this) {
+      latencyMs += LATENCY_WEIGHT * (elapsedMs - latencyMs);
+    }
+  }
+
+  /**
+   * Records a user logged in through this server.
+   *
+   * @param username user name
+   */
+  void addSession(String username) {
+    sessions.add(username);
+  }
+
+  /**
+   * Drops the sessions of the users no longer logged in, wherever they logged out.
+   *
+   * @param loggedIn whether a user is still logged in
+   */
+  void retainSessions(Predicate<String> loggedIn) {
+    sessions.removeIf(loggedIn.negate());
+  }
+
+  /**
+   * Gets the current load.
+   *
+   * @return load report
+   */
+  ServerLoad getLoad() {
+    return new ServerLoad(inFlightRequests.get(), sessions.size(), latencyMs);
+  }
+}
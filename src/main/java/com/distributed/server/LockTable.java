@@ -0,0 +1,135 @@
+package com.distributed.server;
+
+import com.distributed.model.CommitParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * LockTable.java
+ * <p>
+ * Implements the resource locks held by 2PC transactions. A transaction locks only the users,
+ * documents and sections it modifies, so that independent transactions run in parallel and only
+ * conflicting ones abort. Locks never wait: a conflict fails immediately, which keeps the protocol
+ * free of distributed deadlocks. The locks of a prepared participant are leased: a transaction whose
+ * decision never arrives is aborted once its lease expires instead of blocking its resources forever.
+ *
+ * @version 2020-4-21
+ */
+public class LockTable {
+  // resource key -> transaction holding it
+  private ConcurrentMap<String, UUID> owners;
+  // transaction -> resource keys it holds
+  private ConcurrentMap<UUID, List<String>> heldKeys;
+  // prepared transaction -> time its locks expire at
+  private ConcurrentMap<UUID, Long> leases;
+
+  /**
+   * Constructor
+   */
+  LockTable() {
+    owners = new ConcurrentHashMap<>();
+    heldKeys = new ConcurrentHashMap<>();
+    leases = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Locks all the resources modified by a transaction. Either every resource is locked or none.
+   *
+   * @param transactionID transaction id
+   * @param commitParams  commit parameters of the transaction
+   * @return true if all the resources are locked, false if any of them is held by another
+   * transaction
+   */
+  boolean tryLock(UUID transactionID, CommitParams commitParams) {
+    List<String> keys = getResourceKeys(commitParams);
+    List<String> acquired = new ArrayList<>();
+    for (String key : keys) {
+      UUID owner = owners.putIfAbsent(key, transactionID);
+      if (owner != null && !owner.equals(transactionID)) {
+        for (String acquiredKey : acquired) {
+          owners.remove(acquiredKey, transactionID);
+        }
+        return false;
+      }
+      acquired.add(key);
+    }
+    heldKeys.put(transactionID, acquired);
+    return true;
+  }
+
+  /**
+   * Releases all the resources held by a transaction. Does nothing if it holds none.
+   *
+   * @param transactionID transaction id
+   */
+  void release(UUID transactionID) {
+    leases.remove(transactionID);
+    List<String> keys = heldKeys.remove(transactionID);
+    if (keys == null) return;
+    for (String key : keys) {
+      owners.remove(key, transactionID);
+    }
+  }
+
+  /**
+   * Leases the locks of a prepared transaction until its decision arrives.
+   *
+   * @param transactionID transaction id
+   * @param deadlineMs    time the locks expire at
+   */
+  void lease(UUID transactionID, long deadlineMs) {
+    leases.put(transactionID, deadlineMs);
+  }
+
+  /**
+   * Gets the transactions whose lease expired, to be aborted by the caller.
+   *
+   * @param nowMs current time
+   * @return expired transaction ids
+   */
+  List<UUID> getExpiredLeases(long nowMs) {
+    List<UUID> expired = new ArrayList<>();
+    leases.forEach((transactionID, deadlineMs) -> {
+      if (deadlineMs <= nowMs) expired.add(transactionID);
+    });
+    return expired;
+  }
+
+  /**
+   * Gets the keys of the resources modified by a transaction.
+   *
+   * @param commitParams commit parameters
+   * @return resource keys: "user:NAME", "doc:NAME" or "doc:NAME#SECTION"
+   */
+  private List<String> getResourceKeys(CommitParams commitParams) {
+    List<String> keys = new ArrayList<>();
+    String docName = commitParams.getDocName();
+    switch (commitParams.getCommitEnum()) {
+      case CREATE_USER:
+      case LOGIN:
+      case LOGOUT:
+      case GET_NOTIFICATIONS:
+        keys.add("user:" + commitParams.getUser().getUsername());
+        break;
+      case EDIT:
+      case EDIT_END:
+        keys.add("doc:" + docName + "#" + commitParams.getSectionNum());
+        break;
+      case CREATE_DOCUMENT:
+        keys.add("doc:" + docName);
+        break;
+      case SHARE:
+        // the target user receives a notification
+        keys.add("doc:" + docName);
+        keys.add("user:" + commitParams.getTargetUser());
+        break;
+      default:
+        break;
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,74 @@
+package com.distributed.server;
+
+import com.distributed.model.Document;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * MemorySectionStore.java
+ * <p>
+ * Implements a section storage keeping every section in a direct buffer. Nothing is written to disk:
+ * the contents are lost when the server stops and are recovered from the other servers on restart.
+ * Meant for benchmarks and tests of the replication, not for production.
+ *
+ * @version 2020-4-21
+ */
+public class MemorySectionStore implements SectionStore {
+  // section key -> read-only content, replaced as a whole on commit
+  private final ConcurrentMap<String, ByteBuffer> sections;
+
+  /**
+   * Constructor
+   */
+  MemorySectionStore() {
+    this.sections = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void create(Document document) {
+    for (int i = 0; i < document.getSections().size(); i++) {
+      sections.putIfAbsent(SectionStore.getKey(document.getName(), i), ByteBuffer.allocate(0));
+    }
+  }
+
+  @Override
+  public boolean contains(Document document, int sectionNum) {
+    return sections.containsKey(SectionStore.getKey(document.getName(), sectionNum));
+  }
+
+  @Override
+  public SectionContent open(Document document, int sectionNum) throws IOException {
+    ByteBuffer content = sections.get(SectionStore.getKey(document.getName(), sectionNum));
+    if (content == null) throw new IOException("Section does not exist: " + sectionNum);
+    return SectionContent.of(content);
+  }
+
+  @Override
+  public void replace(Document document, int sectionNum, Path content) throws IOException {
+    ByteBuffer buffer;
+    try (FileChannel fileChannel = FileChannel.open(content, StandardOpenOption.READ)) {
+      buffer = ByteBuffer.allocateDirect((int) fileChannel.size());
+      while (buffer.hasRemaining()) {
+        if (fileChannel.read(buffer) < 0) break;
+      }
+      buffer.flip();
+    }
+    // readers that already opened the section keep their view of the previous buffer
+    sections.put(SectionStore.getKey(document.getName(), sectionNum), buffer.asReadOnlyBuffer());
+    Files.delete(content);
+  }
+
+  @Override
+  public void delete(Document document) {
+    for (int i = 0; i < document.getSections().size(); i++) {
+      sections.remove(SectionStore.getKey(document.getName(), i));
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.distributed.server;
+
+import com.distributed.model.CommitParams;
+import com.distributed.model.User;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * OperationLog.java
+ * <p>
+ * Implements a bounded in-memory log of the committed document operations (CREATE_DOCUMENT, SHARE
+ * and EDIT_END) together with the section version they produced. A lagging replica replays the
+ * operations it missed instead of receiving a full state transfer. The oldest operations are dropped
+ * once the log is full.
+ *
+ * @version 2020-4-21
+ */
+public class OperationLog {
+  private final int capacity;
+  private final Deque<CommitParams> operations;
+
+  /**
+   * Constructor
+   *
+   * @param capacity max number of operations kept
+   */
+  OperationLog(int capacity) {
+    this.capacity = capacity;
+    this.operations = new ArrayDeque<>();
+  }
+
+  /**
+   * Appends a committed operation. Section content is not kept, only the operation and its version.
+   *
+   * @param commitParams committed operation
+   * @param version      section version after the operation
+   */
+  synchronized void append(CommitParams commitParams, long version) {
+    CommitParams operation = new CommitParams();
+    operation.setCommitEnum(commitParams.getCommitEnum());
+    if (commitParams.getUser() != null) {
+      operation.setUser(new User(commitParams.getUser().getUsername()));
+    }
+    operation.setDocName(commitParams.getDocName());
+    operation.setSectionNum(commitParams.getSectionNum());
+    operation.setTargetUser(commitParams.getTargetUser());
+    operation.setVersion(version);
+    if (operations.size() == capacity) {
+      operations.removeFirst();
+    }
+    operations.addLast(operation);
+  }
+
+  /**
+   * Gets the logged operations in commit order.
+   *
+   * @return copy of the logged operations
+   */
+  synchronized List<CommitParams> getOperations() {
+    return new ArrayList<>(operations);
+  }
+}
@@ -0,0 +1,209 @@
+package com.distributed.server;
+
+import com.distributed.model.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * PackedSectionStore.java
+ * <p>
+ * Implements a section storage packing all the sections of a document into a single segment file
+ * DOCUMENT.pack: [magic][version][section count], an index of (offset, length) per section, then the
+ * section contents back to back. Segments are read through a read-only memory mapping, so reading a
+ * whole document is one sequential mapped read. The mapping of each segment is cached until the
+ * segment is rewritten. Replacing a section rewrites the segment into a temp file that is fsync'd
+ * and renamed over the previous one; readers keep the mapping they opened. A recovery replaces all
+ * the changed sections of a document in a single rewrite.
+ *
+ * @version 2020-4-21
+ */
+public class PackedSectionStore implements SectionStore {
+  private static final int MAGIC = 0x5345474D;
+  private static final short VERSION = 1;
+  private static final int HEADER_SIZE = 4 + 2 + 4;
+  private static final int INDEX_ENTRY_SIZE = 8 + 8;
+  private final String dataDir;
+  // serializes the rewrites of a segment, sections of a document commit independently
+  private final ConcurrentMap<String, Object> segmentLocks;
+  // current mapping of each segment, a mapping is only released by the GC once unreferenced
+  private final ConcurrentMap<String, MappedByteBuffer> segments;
+
+  /**
+   * Constructor
+   *
+   * @param dataDir directory of the segment files
+   */
+  PackedSectionStore(String dataDir) {
+    this.dataDir = dataDir;
+    this.segmentLocks = new ConcurrentHashMap<>();
+    this.segments = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  public void create(Document document) throws IOException {
+    synchronized (getSegmentLock(document.getName())) {
+      if (new File(getSegmentPath(document.getName())).isFile()) return;
+      List<SectionContent> contents = new ArrayList<>();
+      for (int i = 0; i < document.getSections().size(); i++) {
+        contents.add(SectionContent.of(ByteBuffer.allocate(0)));
+      }
+      writeSegment(document.getName(), contents);
+    }
+  }
+
+  @Override
+  public boolean contains(Document document, int sectionNum) {
+    try {
+      return sectionNum < mapSegment(document.getName()).getInt(HEADER_SIZE - 4);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public SectionContent open(Document document, int sectionNum) throws IOException {
+    return SectionContent.of(getSection(mapSegment(document.getName()), sectionNum));
+  }
+
+  @Override
+  public List<SectionContent> openAll(Document document) throws IOException {
+    // one mapping for the whole document
+    MappedByteBuffer segment = mapSegment(document.getName());
+    List<SectionContent> contents = new ArrayList<>();
+    for (int i = 0; i < document.getSections().size(); i++) {
+      contents.add(SectionContent.of(getSection(segment, i)));
+    }
+    return contents;
+  }
+
+  @Override
+  public void replace(Document document, int sectionNum, Path content) throws IOException {
+    replaceAll(document, Collections.singletonMap(sectionNum, content));
+  }
+
+  @Override
+  public void replaceAll(Document document, Map<Integer, Path> contents) throws IOException {
+    synchronized (getSegmentLock(document.getName())) {
+      MappedByteBuffer segment = mapSegment(document.getName());
+      int sectionCount = segment.getInt(HEADER_SIZE - 4);
+      for (int sectionNum : contents.keySet()) {
+        if (sectionNum < 0 || sectionNum >= sectionCount) throw new IOException("Section does not exist: " + sectionNum);
+      }
+      List<SectionContent> sectionContents = new ArrayList<>();
+      try {
+        for (int i = 0; i < sectionCount; i++) {
+          Path content = contents.get(i);
+          sectionContents.add(content != null
+                  ? SectionContent.of(FileChannel.open(content, StandardOpenOption.READ))
+                  : SectionContent.of(getSection(segment, i)));
+        }
+        writeSegment(document.getName(), sectionContents);
+      } finally {
+        for (SectionContent sectionContent : sectionContents) sectionContent.close();
+      }
+      for (Path content : contents.values()) {
+        Files.delete(content);
+      }
+    }
+  }
+
+  @Override
+  public void delete(Document document) throws IOException {
+    synchronized (getSegmentLock(document.getName())) {
+      segments.remove(document.getName());
+      Files.deleteIfExists(Paths.get(getSegmentPath(document.getName())));
+    }
+  }
+
+  private String getSegmentPath(String docName) {
+    return dataDir + docName + ".pack";
+  }
+
+  private Object getSegmentLock(String docName) {
+    return segmentLocks.computeIfAbsent(docName, name -> new Object());
+  }
+
+  private MappedByteBuffer mapSegment(String docName) throws IOException {
+    MappedByteBuffer segment = segments.get(docName);
+    if (segment != null) return segment;
+    // mapped under the lock, so a rewrite cannot happen between the mapping and the caching
+    synchronized (getSegmentLock(docName)) {
+      segment = segments.get(docName);
+      if (segment == null) {
+        segment = map(docName);
+        segments.put(docName, segment);
+      }
+      return segment;
+    }
+  }
+
+  private MappedByteBuffer map(String docName) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(getSegmentPath(docName)), StandardOpenOption.READ)) {
+      // the mapping stays valid once the channel is closed or the segment replaced
+      MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (segment.limit() < HEADER_SIZE || segment.getInt(0) != MAGIC || segment.getShort(4) != VERSION) {
+        throw new IOException("Corrupted segment: " + getSegmentPath(docName));
+      }
+      return segment;
+    }
+  }
+
+  private ByteBuffer getSection(MappedByteBuffer segment, int sectionNum) throws IOException {
+    int sectionCount = segment.getInt(HEADER_SIZE - 4);
+    if (sectionNum < 0 || sectionNum >= sectionCount) throw new IOException("Section does not exist: " + sectionNum);
+    int indexPosition = HEADER_SIZE + sectionNum * INDEX_ENTRY_SIZE;
+    long offset = segment.getLong(indexPosition);
+    long length = segment.getLong(indexPosition + 8);
+    ByteBuffer section = segment.duplicate();
+    section.limit((int) (offset + length));
+    section.position((int) offset);
+    return section.slice().asReadOnlyBuffer();
+  }
+
+  private void writeSegment(String docName, List<SectionContent> contents) throws IOException {
+    Path segmentPath = Paths.get(getSegmentPath(docName));
+    Path tempPath = Paths.get(getSegmentPath(docName) + ".tmp");
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + contents.size() * INDEX_ENTRY_SIZE);
+    header.putInt(MAGIC);
+    header.putShort(VERSION);
+    header.putInt(contents.size());
+    long offset = header.capacity();
+    for (SectionContent content : contents) {
+      long length = content.size();
+      header.putLong(offset);
+      header.putLong(length);
+      offset += length;
+    }
+    header.flip();
+
+    try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+      for (SectionContent content : contents) {
+        content.sendTo(channel);
+      }
+      channel.force(false);
+    }
+    Files.move(tempPath, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    FileSectionStore.syncDirectory(segmentPath.getParent());
+    // called with the segment lock held
+    segments.remove(docName);
+  }
+}
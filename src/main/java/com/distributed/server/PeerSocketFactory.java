@@ -0,0 +1,98 @@
+package com.distributed.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * PeerSocketFactory.java
+ * <p>
+ * Client socket factory of the exported servers, shipped with their stubs. Connections to a server
+ * time out after a bounded connect, and a caller may bound how long it waits for the answer of its
+ * calls, see {@link #setReadTimeout(long)}: a hung peer then fails the 2PC RPC instead of holding the
+ * calling thread forever. Calls without a read timeout (recoveries, client requests) wait as long as
+ * the server takes. RMI reuses connections across calls, the read timeout is applied to the socket
+ * before every read of the calling thread.
+ *
+ * @version 2020-4-21
+ */
+public class PeerSocketFactory implements RMIClientSocketFactory, Serializable {
+  private static final long serialVersionUID = 1L;
+  // read timeout of the calls made by the current thread, 0 waits forever
+  private static final ThreadLocal<Integer> readTimeoutMs = ThreadLocal.withInitial(() -> 0);
+  private final int connectTimeoutMs;
+
+  /**
+   * Constructor
+   *
+   * @param connectTimeoutMs connect timeout in ms
+   */
+  PeerSocketFactory(long connectTimeoutMs) {
+    this.connectTimeoutMs = (int) Math.min(connectTimeoutMs, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Sets the read timeout of the calls made by the current thread.
+   *
+   * @param timeoutMs read timeout in ms, 0 waits forever
+   */
+  static void setReadTimeout(long timeoutMs) {
+    readTimeoutMs.set((int) Math.min(timeoutMs, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Removes the read timeout of the calls made by the current thread.
+   */
+  static void clearReadTimeout() {
+    readTimeoutMs.remove();
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    Socket socket = new TimeoutSocket();
+    socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+    return socket;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    // RMI pools the connections by endpoint, which includes the socket factory
+    return o instanceof PeerSocketFactory && ((PeerSocketFactory) o).connectTimeoutMs == connectTimeoutMs;
+  }
+
+  @Override
+  public int hashCode() {
+    return Integer.hashCode(connectTimeoutMs);
+  }
+
+  /**
+   * Socket whose reads time out after the read timeout of the reading thread
+   */
+  private static class TimeoutSocket extends Socket {
+    private InputStream inputStream;
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (inputStream == null) {
+        inputStream = new FilterInputStream(super.getInputStream()) {
+          @Override
+          public int read() throws IOException {
+            setSoTimeout(readTimeoutMs.get());
+            return super.read();
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            setSoTimeout(readTimeoutMs.get());
+            return super.read(b, off, len);
+          }
+        };
+      }
+      return inputStream;
+    }
+  }
+}
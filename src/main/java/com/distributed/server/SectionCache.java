@@ -0,0 +1,139 @@
+package com.distributed.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SectionCache.java
+ * <p>
+ * Implements an LRU cache of section contents bounded by the total number of bytes cached. Each entry
+ * is tagged with the section version it was read at, so a reader never gets the content of an older
+ * version. The contents are kept in direct buffers, outside of the Java heap.
+ *
+ * @version 2020-4-21
+ */
+public class SectionCache {
+  private final long maxBytes;
+  // sections larger than this are always read from disk
+  private final long maxEntryBytes;
+  // section key -> cached content, in access order
+  private final LinkedHashMap<String, Entry> entries;
+  private long cachedBytes;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong evictions;
+
+  /**
+   * Content of a section at a given version
+   */
+  private static class Entry {
+    private final long version;
+    private final ByteBuffer content;
+
+    private Entry(long version, ByteBuffer content) {
+      this.version = version;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param maxBytes max number of bytes cached, 0 disables the cache
+   */
+  SectionCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 8;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.evictions = new AtomicLong();
+  }
+
+  /**
+   * Gets the content of a section, reading it from disk on a miss. The version must be read before
+   * the file: a commit replaces the content before it bumps the version.
+   *
+   * @param key     section key
+   * @param version current version of the section
+   * @param path    section file
+   * @return read-only view of the content, or null if the section is too large to be cached
+   * @throws IOException if the section cannot be read
+   */
+  ByteBuffer get(String key, long version, Path path) throws IOException {
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.version == version) {
+        hits.incrementAndGet();
+        return entry.content.duplicate();
+      }
+    }
+    misses.incrementAndGet();
+
+    ByteBuffer content;
+    try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = fileChannel.size();
+      if (size > maxEntryBytes) return null;
+      content = ByteBuffer.allocateDirect((int) size);
+      while (content.hasRemaining()) {
+        if (fileChannel.read(content) < 0) break;
+      }
+      content.flip();
+    }
+    content = content.asReadOnlyBuffer();
+    put(key, new Entry(version, content));
+    return content.duplicate();
+  }
+
+  /**
+   * Drops the cached content of a section, called when a new version is committed.
+   *
+   * @param key section key
+   */
+  synchronized void invalidate(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) cachedBytes -= entry.content.capacity();
+  }
+
+  /**
+   * Drops every cached section, e.g. after the section files were replaced by a recovery.
+   */
+  synchronized void clear() {
+    entries.clear();
+    cachedBytes = 0;
+  }
+
+  /**
+   * Gets the hit/miss/eviction counters.
+   *
+   * @return human readable statistics
+   */
+  synchronized String getStats() {
+    return "Section cache: " + hits.get() + " hits, " + misses.get() + " misses, " + evictions.get()
+            + " evictions, " + entries.size() + " sections, " + cachedBytes + "/" + maxBytes + " bytes";
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry previous = entries.get(key);
+    // a concurrent reader may already have cached a newer version
+    if (previous != null && previous.version > entry.version) return;
+    if (previous != null) cachedBytes -= previous.content.capacity();
+    entries.put(key, entry);
+    cachedBytes += entry.content.capacity();
+
+    Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while (cachedBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Entry> eldest = iterator.next();
+      iterator.remove();
+      cachedBytes -= eldest.getValue().content.capacity();
+      evictions.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package com.distributed.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * SectionContent.java
+ * <p>
+ * Implements a handle on the content of one section as returned by a {@link SectionStore}: either a
+ * buffer (cached or memory-mapped) or an open file. The content is fixed once opened, a section
+ * replaced afterwards does not change it.
+ *
+ * @version 2020-4-21
+ */
+public class SectionContent implements Closeable {
+  private final ByteBuffer buffer;
+  private final FileChannel file;
+
+  private SectionContent(ByteBuffer buffer, FileChannel file) {
+    this.buffer = buffer;
+    this.file = file;
+  }
+
+  /**
+   * Wraps a buffer holding the whole content.
+   *
+   * @param buffer content, read from its position to its limit
+   * @return the section content
+   */
+  static SectionContent of(ByteBuffer buffer) {
+    return new SectionContent(buffer.duplicate(), null);
+  }
+
+  /**
+   * Wraps an open file holding the whole content.
+   *
+   * @param file file opened for reading, closed with the content
+   * @return the section content
+   */
+  static SectionContent of(FileChannel file) {
+    return new SectionContent(null, file);
+  }
+
+  /**
+   * Gets the size of the content.
+   *
+   * @return size in bytes
+   * @throws IOException if an I/O error occurs
+   */
+  long size() throws IOException {
+    return buffer != null ? buffer.remaining() : file.size();
+  }
+
+  /**
+   * Writes the whole content to a channel. Files are sent with FileChannel.transferTo so the bytes
+   * do not go through the Java heap.
+   *
+   * @param target channel to write to
+   * @throws IOException if an I/O error occurs
+   */
+  void sendTo(WritableByteChannel target) throws IOException {
+    if (buffer != null) {
+      ByteBuffer content = buffer.duplicate();
+      while (content.hasRemaining()) {
+        target.write(content);
+      }
+      return;
+    }
+    long position = 0;
+    long size = file.size();
+    while (position < size) {
+      position += file.transferTo(position, size - position, target);
+    }
+  }
+
+  /**
+   * Opens a stream on the content, starting at the given offset. The stream closes the content.
+   *
+   * @param offset number of bytes to skip
+   * @return input stream
+   * @throws IOException if an I/O error occurs
+   */
+  InputStream newInputStream(long offset) throws IOException {
+    if (file != null) {
+      file.position(offset);
+      return Channels.newInputStream(file);
+    }
+    ByteBuffer content = buffer.duplicate();
+    content.position(content.position() + (int) Math.min(offset, content.remaining()));
+    return new InputStream() {
+      @Override
+      public int read() {
+        return content.hasRemaining() ? content.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int off, int len) {
+        if (!content.hasRemaining()) return -1;
+        int count = Math.min(len, content.remaining());
+        content.get(bytes, off, count);
+        return count;
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    if (file == null) return;
+    try {
+      file.close();
+    } catch (IOException e) {
+      // nothing left to read from it
+    }
+  }
+}
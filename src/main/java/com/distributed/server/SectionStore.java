@@ -0,0 +1,111 @@
+package com.distributed.server;
+
+import com.distributed.model.Document;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SectionStore.java
+ * <p>
+ * Storage engine of the section contents. The document database only keeps the metadata, a store
+ * creates, reads and replaces the bytes of the sections. Sections are identified by document name
+ * and index, never by a server specific path, so replicas using any store exchange sections by key.
+ *
+ * @version 2020-4-21
+ */
+public interface SectionStore {
+  /**
+   * Gets the key identifying a section across servers.
+   *
+   * @param docName    document name
+   * @param sectionNum section index
+   * @return "DOCUMENT/sectionN"
+   */
+  static String getKey(String docName, int sectionNum) {
+    return docName + "/section" + sectionNum;
+  }
+
+  /**
+   * Creates the empty sections of a new document. Existing sections are kept.
+   *
+   * @param document new document
+   * @throws IOException if an I/O error occurs
+   */
+  void create(Document document) throws IOException;
+
+  /**
+   * Whether the content of a section is stored.
+   *
+   * @param document   document
+   * @param sectionNum section index
+   * @return true if the section can be opened
+   */
+  boolean contains(Document document, int sectionNum);
+
+  /**
+   * Opens the current content of a section.
+   *
+   * @param document   document
+   * @param sectionNum section index
+   * @return content, to be closed by the caller
+   * @throws IOException if the section cannot be read
+   */
+  SectionContent open(Document document, int sectionNum) throws IOException;
+
+  /**
+   * Opens the current content of every section of a document, in order.
+   *
+   * @param document document
+   * @return contents, to be closed by the caller
+   * @throws IOException if a section cannot be read
+   */
+  default List<SectionContent> openAll(Document document) throws IOException {
+    List<SectionContent> contents = new ArrayList<>();
+    try {
+      for (int i = 0; i < document.getSections().size(); i++) {
+        contents.add(open(document, i));
+      }
+    } catch (IOException e) {
+      for (SectionContent content : contents) content.close();
+      throw e;
+    }
+    return contents;
+  }
+
+  /**
+   * Atomically replaces the content of a section with a file, which is consumed. Readers see either
+   * the previous or the new content, never a mix of both.
+   *
+   * @param document   document
+   * @param sectionNum section index
+   * @param content    durable file holding the new content
+   * @throws IOException if an I/O error occurs
+   */
+  void replace(Document document, int sectionNum, Path content) throws IOException;
+
+  /**
+   * Replaces the content of several sections of a document, e.g. when it is recovered. Each
+   * section is replaced atomically, a store may write them all at once.
+   *
+   * @param document document
+   * @param contents durable files holding the new contents by section index, which are consumed
+   * @throws IOException if an I/O error occurs
+   */
+  default void replaceAll(Document document, Map<Integer, Path> contents) throws IOException {
+    for (Map.Entry<Integer, Path> content : contents.entrySet()) {
+      replace(document, content.getKey(), content.getValue());
+    }
+  }
+
+  /**
+   * Deletes the contents of all sections of a document, e.g. once they moved to another store.
+   *
+   * @param document document
+   * @throws IOException if an I/O error occurs
+   */
+  void delete(Document document) throws IOException;
+}
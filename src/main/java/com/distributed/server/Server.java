@@ -2,21 +2,22 @@ package com.distributed.server;
 
 import com.distributed.chat.ChatManager;
 import com.distributed.model.BackupData;
+import com.distributed.model.ClusterView;
 import com.distributed.model.CommitEnum;
 import com.distributed.model.CommitParams;
 import com.distributed.model.Document;
-import com.distributed.model.RemoteInputStreamUtils;
 import com.distributed.model.Request;
 import com.distributed.model.Result;
 import com.distributed.model.Section;
+import com.distributed.model.ServerLoad;
 import com.distributed.model.User;
 import com.healthmarketscience.rmiio.RemoteInputStream;
+import com.healthmarketscience.rmiio.RemoteInputStreamClient;
 import com.healthmarketscience.rmiio.SimpleRemoteInputStream;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.SerializationUtils;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -24,25 +25,46 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.SequenceInputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.net.InetAddress;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Server.java
@@ -54,8 +76,37 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class Server implements ServerInterface {
   private final String DATA_DIR;
-  private final String USER_DB_NAME = "UserDB.dat";
-  private final String DOC_DB_NAME = "DocDB.dat";
+  private final String USER_DB_NAME = "UserDB.snap";
+  private final String DOC_DB_NAME = "DocDB.snap";
+  // java serialization snapshots of previous versions, migrated on startup
+  private final String LEGACY_USER_DB_NAME = "UserDB.dat";
+  private final String LEGACY_DOC_DB_NAME = "DocDB.dat";
+  private final String WAL_NAME = "commit.log";
+  // number of logged mutations that triggers a snapshot of the databases
+  private static final long CHECKPOINT_INTERVAL = 1000;
+  // attempts to download a section while recovering, each one resumes where the last stopped
+  private static final int RECOVERY_ATTEMPTS = 3;
+  // sections uploaded by EDIT_END are spooled here until the transaction commits or aborts
+  private static final String UPLOAD_DIR = "uploads/";
+  // slowest transfer rate expected while peers pull an upload, extends the prepare deadline
+  private static final long MIN_UPLOAD_BYTES_PER_MS = 1024;
+  // document operations kept for the catch-up of lagging replicas
+  private static final int OPERATION_LOG_SIZE = 10000;
+  // bounded pool used by the 2PC coordinator to contact all peers concurrently
+  private static final int PEER_POOL_SIZE = 8;
+  private static final int PEER_QUEUE_SIZE = 64;
+  // default deadline for a whole round of peer RPCs in one 2PC phase, see "server.2pc.timeoutMs"
+  private static final long DEFAULT_PEER_TIMEOUT_MS = 1000;
+  // section storage engines, see "server.storage"
+  private static final String FILE_STORAGE = "file";
+  private static final String PACKED_STORAGE = "packed";
+  private static final String MEMORY_STORAGE = "memory";
+  // default size of the section read cache, see "server.cache.maxBytes"
+  private static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+  // central server a standalone server registers with by default
+  private static final int DEFAULT_CENTRAL_PORT = 1200;
+  // default period of the load reports sent to the central server, see "server.heartbeatMs"
+  private static final long DEFAULT_HEARTBEAT_MS = 1000;
   public int currPort;
   public String serverName;
   private int centralPort;
@@ -64,19 +115,54 @@ public class Server implements ServerInterface {
   private AliveUserDatabase aliveUserDatabase;
   private UserDatabase userDatabase;
   private ChatManager chatManager;
+  // resources locked by in-flight transactions
+  private LockTable lockTable;
+  // cached RMI stubs of peers and central server
+  private StubCache stubCache;
+  // peer ports pushed by the central server
+  private volatile int[] peers;
   // temporarily store CommitParams info before a transaction commits
   private ConcurrentMap<UUID, CommitParams> tempStorage;
   private ConcurrentMap<UUID, ConcurrentMap<Integer, Boolean>> prepareResponseMap;
+  // peers a prepare request was sent to, they all get the decision
+  private ConcurrentMap<UUID, int[]> preparedPeers;
   private ConcurrentMap<UUID, ConcurrentMap<Integer, Boolean>> commitResponseMap;
+  private ExecutorService peerExecutor;
+  private ExecutorService reportExecutor;
+  private long peerTimeoutMs;
+  // committed mutations of the user and document databases since the last snapshot
+  private WriteAheadLog writeAheadLog;
+  // shared by executeCommit, exclusive while taking a snapshot and truncating the log
+  private ReentrantReadWriteLock checkpointLock;
+  private AtomicBoolean checkpointing;
+  // committed document operations with the section version they produced
+  private OperationLog operationLog;
+  // recently committed transactions, a server that missed some replays them from a peer
+  private TransactionLog transactionLog;
+  // side channel serving section downloads
+  private TransferServer transferServer;
+  // contents of the most read sections
+  private SectionCache sectionCache;
+  // storage engine of the section contents, see "server.storage"
+  private SectionStore sectionStore;
+  // in-flight requests, sessions and latency reported to the central server
+  private LoadTracker loadTracker;
+  private ScheduledExecutorService scheduledExecutor;
+  // cluster view refetched when the epoch returned by a heartbeat changes
+  private volatile ClusterView clusterView;
+  private Thread shutdownHook;
+  // object exported for RMI, counts the client requests in the load
+  private ServerInterface exported;
 
   /**
    * constructor
    *
    * @param currPort    port# for current server
+   * @param centralHost host of central server, null for the local host
    * @param centralPort port# for central server
    * @throws RemoteException
    */
-  public Server(int currPort, int centralPort) throws RemoteException {
+  public Server(int currPort, String centralHost, int centralPort) throws RemoteException {
     this.currPort = currPort;
     this.serverName = Server.class.getSimpleName() + currPort;
     this.centralPort = centralPort;
@@ -85,50 +171,358 @@ public class Server implements ServerInterface {
     serverLogger = new ServerLogger();
     userDatabase = initUserDB();
     documentDatabase = initDocumentDB();
+    sectionCache = new SectionCache(Long.getLong("server.cache.maxBytes", DEFAULT_CACHE_MAX_BYTES));
+    sectionStore = createSectionStore(System.getProperty("server.storage", FILE_STORAGE));
     aliveUserDatabase = new AliveUserDatabase();
     chatManager = new ChatManager();
+    checkpointLock = new ReentrantReadWriteLock();
+    checkpointing = new AtomicBoolean(false);
+    operationLog = new OperationLog(OPERATION_LOG_SIZE);
+    transactionLog = new TransactionLog(OPERATION_LOG_SIZE);
+    try {
+      openWriteAheadLog();
+      replayLog();
+      migrateLegacySnapshots();
+    } catch (IOException e) {
+      throw new RemoteException("Unable to open the commit log of " + serverName, e);
+    }
+
+    migrateSections();
+
+    try {
+      transferServer = new TransferServer(serverName, serverLogger);
+    } catch (IOException e) {
+      throw new RemoteException("Unable to open the transfer socket of " + serverName, e);
+    }
 
+    lockTable = new LockTable();
+    stubCache = new StubCache();
+    stubCache.setHost(centralPort, centralHost);
     tempStorage = new ConcurrentHashMap<>();
     prepareResponseMap = new ConcurrentHashMap<>();
+    preparedPeers = new ConcurrentHashMap<>();
     commitResponseMap = new ConcurrentHashMap<>();
+    peerExecutor = new ThreadPoolExecutor(PEER_POOL_SIZE, PEER_POOL_SIZE, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(PEER_QUEUE_SIZE), runnable -> {
+      Thread thread = new Thread(runnable, serverName + "-2pc");
+      thread.setDaemon(true);
+      return thread;
+    }, new ThreadPoolExecutor.AbortPolicy());
+    // missed acks are reported apart from the peer RPCs, a hung peer must not delay its own report
+    reportExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, serverName + "-report");
+      thread.setDaemon(true);
+      return thread;
+    });
+    peerTimeoutMs = Long.getLong("server.2pc.timeoutMs", DEFAULT_PEER_TIMEOUT_MS);
+    loadTracker = new LoadTracker();
+    scheduledExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, serverName + "-scheduled");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long heartbeatMs = Long.getLong("server.heartbeatMs", DEFAULT_HEARTBEAT_MS);
+    scheduledExecutor.scheduleWithFixedDelay(this::sendHeartbeat, 0, heartbeatMs, TimeUnit.MILLISECONDS);
+    scheduledExecutor.scheduleWithFixedDelay(this::expireLeases, peerTimeoutMs, peerTimeoutMs, TimeUnit.MILLISECONDS);
 
 //    bindRMI();
 
     System.setProperty("java.net.preferIPv4Stack", "true");
-    // store memory database when shutting down with shutdown hook
-    userDatabase = initUserDB();
-    documentDatabase = initDocumentDB();
-    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+    // snapshot memory database and compact the log when shutting down with shutdown hook
+    shutdownHook = new Thread(() -> {
       System.out.println(serverName + " is shutting down...");
-      storeUsersDB();
-      storeDocumentsDB();
-    }));
+      serverLogger.log(serverName, sectionCache.getStats());
+      checkpoint();
+    });
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * Stops the background threads of a killed server, as if its process had crashed: no more
+   * heartbeats, no downloads and no checkpoint at exit.
+   */
+  void stop() {
+    scheduledExecutor.shutdownNow();
+    peerExecutor.shutdownNow();
+    reportExecutor.shutdownNow();
+    transferServer.close();
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // already shutting down
+    }
+  }
+
+  /**
+   * Exports the server for RMI, through a proxy that tracks the client requests
+   *
+   * @return stub to bind in the registry
+   * @throws RemoteException if the export fails
+   */
+  ServerInterface export() throws RemoteException {
+    exported = loadTracker.track(this, ServerInterface.class);
+    // callers connecting to this server time out, peers also bound how long they wait for answers
+    return (ServerInterface) UnicastRemoteObject.exportObject(exported, 0, new PeerSocketFactory(peerTimeoutMs), null);
+  }
+
+  /**
+   * Unexports the server so that cached stubs stop reaching it
+   *
+   * @throws NoSuchObjectException if the server is not exported
+   */
+  void unexport() throws NoSuchObjectException {
+    UnicastRemoteObject.unexportObject(exported, true);
+  }
+
+  /**
+   * Program Entry Point: runs a server in its own JVM and adds it to a running cluster, from which
+   * it gets its data. Usage: Server port [centralPort [centralHost]]. Set java.rmi.server.hostname
+   * to the address the other servers reach this one at.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.out.println("Please specify a server port!");
+      return;
+    }
+    System.setProperty("java.net.preferIPv4Stack", "true");
+    Logger rmiioLogger = Logger.getLogger("com.healthmarketscience.rmiio");
+    rmiioLogger.setLevel(Level.SEVERE);
+    int port = Integer.parseInt(args[0]);
+    int centralPort = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CENTRAL_PORT;
+    String centralHost = args.length > 2 ? args[2] : null;
+    String host = System.getProperty("java.rmi.server.hostname", InetAddress.getLocalHost().getHostAddress());
+
+    Server server = new Server(port, centralHost, centralPort);
+    ServerInterface stub = server.export();
+    Registry registry = LocateRegistry.createRegistry(port);
+    registry.rebind(server.serverName, stub);
+    Registry centralRegistry = LocateRegistry.getRegistry(centralHost, centralPort);
+    CentralServerInterface central = (CentralServerInterface) centralRegistry.lookup(CentralServer.class.getSimpleName() + centralPort);
+    if (!central.registerServer(host, port)) {
+      System.err.println(server.serverName + " could not join the cluster.");
+      System.exit(1);
+    }
+    System.out.println(server.serverName + " joined the cluster.");
   }
 
   /**
-   * Stores UserDB object through serialization.
+   * Create the storage engine of the section contents
+   *
+   * @param storage "file": one file per section, "packed": one memory-mapped segment file per
+   *                document, "memory": in memory only
+   * @return the section store
+   */
+  private SectionStore createSectionStore(String storage) {
+    switch (storage) {
+      case PACKED_STORAGE:
+        return new PackedSectionStore(DATA_DIR);
+      case MEMORY_STORAGE:
+        return new MemorySectionStore();
+      case FILE_STORAGE:
+        return new FileSectionStore(DATA_DIR, sectionCache);
+      default:
+        serverLogger.log(serverName, "Unknown section storage " + storage + ", using " + FILE_STORAGE);
+        return new FileSectionStore(DATA_DIR, sectionCache);
+    }
+  }
+
+  /**
+   * Moves the sections stored by the other persistent storage into the configured one, after
+   * "server.storage" changed on an existing data directory. Sections found in neither are recovered
+   * from the other servers.
+   */
+  private void migrateSections() {
+    SectionStore previousStore;
+    if (sectionStore instanceof PackedSectionStore) {
+      previousStore = new FileSectionStore(DATA_DIR, sectionCache);
+    } else if (sectionStore instanceof FileSectionStore) {
+      previousStore = new PackedSectionStore(DATA_DIR);
+    } else {
+      return;
+    }
+    int migrated = 0;
+    for (Document doc : documentDatabase.getDocuments()) {
+      Map<Integer, Path> contents = new HashMap<>();
+      boolean missing = false;
+      try {
+        for (int i = 0; i < doc.getSections().size(); i++) {
+          if (sectionStore.contains(doc, i)) continue;
+          if (!previousStore.contains(doc, i)) {
+            missing = true;
+            continue;
+          }
+          // replaceAll consumes its files, the previous content is copied first
+          Path copy = Paths.get(DATA_DIR + UPLOAD_DIR + UUID.randomUUID());
+          try (SectionContent content = previousStore.open(doc, i);
+               FileChannel channel = FileChannel.open(copy, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            content.sendTo(channel);
+            channel.force(false);
+          }
+          contents.put(i, copy);
+        }
+        if (missing) {
+          serverLogger.log(serverName, "Sections of " + doc.getName() + " are missing, recovered from the other servers");
+        }
+        if (contents.isEmpty()) continue;
+        sectionStore.create(doc);
+        sectionStore.replaceAll(doc, contents);
+        // a later switch back must not find the stale contents
+        previousStore.delete(doc);
+        migrated++;
+      } catch (IOException e) {
+        serverLogger.log(serverName, "Unable to migrate the sections of " + doc.getName() + ": " + e.getMessage());
+      } finally {
+        for (Path content : contents.values()) content.toFile().delete();
+      }
+    }
+    if (migrated > 0) {
+      serverLogger.log(serverName, "Migrated the sections of " + migrated + " documents to the "
+              + System.getProperty("server.storage", FILE_STORAGE) + " storage");
+    }
+  }
+
+  /**
+   * Stores UserDB object as a binary snapshot.
    */
   private boolean storeUsersDB() {
-    try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(DATA_DIR + USER_DB_NAME))) {
-      output.writeObject(userDatabase);
+    try {
+      DatabaseSnapshot.writeUsers(userDatabase, writeAheadLog.getLastPosition(), DATA_DIR + USER_DB_NAME);
       return true;
     } catch (IOException ex) {
+      serverLogger.log(serverName, "Exception: " + ex.getMessage());
       return false;
     }
   }
 
   /**
-   * Stores DocumentsDatabase object through serialization.
+   * Stores DocumentsDatabase object as a binary snapshot.
    */
   private boolean storeDocumentsDB() {
-    try (ObjectOutputStream output = new ObjectOutputStream(new FileOutputStream(DATA_DIR + DOC_DB_NAME))) {
-      output.writeObject(documentDatabase);
+    try {
+      DatabaseSnapshot.writeDocuments(documentDatabase, writeAheadLog.getLastPosition(), DATA_DIR + DOC_DB_NAME);
       return true;
     } catch (IOException ex) {
+      serverLogger.log(serverName, "Exception: " + ex.getMessage());
       return false;
     }
   }
 
+  /**
+   * Rewrites databases loaded from java serialization snapshots in the binary format and removes the
+   * old files.
+   */
+  private void migrateLegacySnapshots() {
+    File legacyUsers = new File(DATA_DIR + LEGACY_USER_DB_NAME);
+    File legacyDocuments = new File(DATA_DIR + LEGACY_DOC_DB_NAME);
+    if (!legacyUsers.exists() && !legacyDocuments.exists()) return;
+    checkpoint();
+    if (new File(DATA_DIR + USER_DB_NAME).isFile() && new File(DATA_DIR + DOC_DB_NAME).isFile()) {
+      legacyUsers.delete();
+      legacyDocuments.delete();
+      serverLogger.log(serverName, "Migrated database snapshots to the binary format");
+    }
+  }
+
+  /**
+   * Opens the commit log in the data directory.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  private void openWriteAheadLog() throws IOException {
+    writeAheadLog = new WriteAheadLog(DATA_DIR + WAL_NAME);
+  }
+
+  /**
+   * Replays the mutations logged after the last snapshot on top of the loaded databases. Records
+   * a snapshot already covers are skipped, the server may have crashed before truncating the log or
+   * between writing the two snapshots.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  private void replayLog() throws IOException {
+    long userPosition = getSnapshotPosition(USER_DB_NAME);
+    long documentPosition = getSnapshotPosition(DOC_DB_NAME);
+    List<WriteAheadLog.Record> records = writeAheadLog.readAll();
+    writeAheadLog.skipTo(Math.max(userPosition, documentPosition));
+    int replayed = 0;
+    for (WriteAheadLog.Record record : records) {
+      CommitParams commitParams = record.commitParams;
+      boolean users = record.position > userPosition;
+      boolean documents = record.position > documentPosition;
+      if (!users && !documents) continue;
+      // snapshots written before they were tagged with a position may already hold the document
+      if (documents && commitParams.getCommitEnum() == CommitEnum.CREATE_DOCUMENT
+              && documentDatabase.getDocumentByName(commitParams.getDocName()) != null) {
+        continue;
+      }
+      if (users && documents) {
+        applyCommit(commitParams);
+      } else {
+        replayPartially(commitParams, users);
+      }
+      replayed++;
+    }
+    if (replayed > 0) {
+      serverLogger.log(serverName, "Replayed " + replayed + " commit log records");
+    }
+  }
+
+  /**
+   * Replays a mutation on the one database whose snapshot does not cover it yet
+   *
+   * @param commitParams logged mutation
+   * @param users        true to replay on the user database, false on the document database
+   * @throws IOException if an I/O error occurs
+   */
+  private void replayPartially(CommitParams commitParams, boolean users) throws IOException {
+    switch (commitParams.getCommitEnum()) {
+      case CREATE_USER:
+      case GET_NOTIFICATIONS:
+        if (users) applyCommit(commitParams);
+        break;
+      case CREATE_DOCUMENT:
+      case EDIT_END:
+        if (!users) applyCommit(commitParams);
+        break;
+      case SHARE:
+        if (users) {
+          notifySharedUser(commitParams);
+        } else {
+          shareDocument(commitParams);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Gets the last commit log position a snapshot covers
+   *
+   * @param name snapshot file name
+   * @return log position, -1 if there is no snapshot or it is not tagged with one
+   * @throws IOException if the snapshot cannot be read
+   */
+  private long getSnapshotPosition(String name) throws IOException {
+    if (!new File(DATA_DIR + name).isFile()) return -1;
+    return DatabaseSnapshot.readLogPosition(DATA_DIR + name);
+  }
+
+  /**
+   * Snapshots the user and document databases and empties the commit log. Commits are held back
+   * until the snapshot is written.
+   */
+  private void checkpoint() {
+    checkpointLock.writeLock().lock();
+    try {
+      if (storeUsersDB() && storeDocumentsDB()) {
+        writeAheadLog.truncate();
+      }
+    } catch (IOException e) {
+      serverLogger.log(serverName, "Checkpoint failed: " + e.getMessage());
+    } finally {
+      checkpointLock.writeLock().unlock();
+    }
+  }
+
 //  /**
 //   * Binds RMI
 //   */
@@ -155,10 +549,10 @@ public class Server implements ServerInterface {
     String username = user.getUsername();
     if (userDatabase.isUsernameAvailable(username)) {
       CommitParams commitParams = new CommitParams();
-      commitParams.setUser(user);
+      // replicate the user with its encrypted password only
+      commitParams.setUser(new User(username, user.getPassword()));
       commitParams.setCommitEnum(CommitEnum.CREATE_USER);
       commitParams.setSectionNum(-1);
-      commitParams.setUserDatabase(userDatabase);
 
       Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
       if (result.getStatus() == 1) {
@@ -190,7 +584,12 @@ public class Server implements ServerInterface {
         commitParams.setUser(user);
         commitParams.setCommitEnum(CommitEnum.LOGIN);
         commitParams.setSectionNum(-1);
-        commitParams.setAliveUserDatabase(aliveUserDatabase);
+        try {
+          // generate the token once so that all replicas share the same session
+          commitParams.setToken(user.generateToken());
+        } catch (Exception e) {
+          return new Result(0, "Token generation failure while logging in.");
+        }
 
         Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
         if (result.getStatus() == 0) {
@@ -201,6 +600,7 @@ public class Server implements ServerInterface {
         if (token != null) {
           serverLogger.log(serverName, CommitEnum.LOGIN + ": SUCCESS");
           serverLogger.log("New user logged in: " + user.getUsername());
+          loadTracker.addSession(user.getUsername());
           return new Result(1, token);
         } else {
           return new Result(0, "Token generation failure while logging in.");
@@ -225,7 +625,6 @@ public class Server implements ServerInterface {
     commitParams.setUser(user);
     commitParams.setCommitEnum(CommitEnum.LOGOUT);
     commitParams.setSectionNum(-1);
-    commitParams.setAliveUserDatabase(aliveUserDatabase);
     Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
 
     if (result.getStatus() == 1) {
@@ -235,7 +634,6 @@ public class Server implements ServerInterface {
     } else {
       return new Result(0, "Request aborted.");
     }
-
   }
 
 
@@ -282,8 +680,6 @@ public class Server implements ServerInterface {
     commitParams.setCommitEnum(CommitEnum.EDIT);
     commitParams.setDocName(request.getDocName());
     commitParams.setSectionNum(request.getSectionNum());
-    commitParams.setDocumentDatabase(documentDatabase);
-    commitParams.setChatManager(chatManager);
     long nextAvailableAddress = chatManager.getNextAvailableAddress();
     commitParams.setMulticastAddress(nextAvailableAddress);
     Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
@@ -293,12 +689,11 @@ public class Server implements ServerInterface {
     }
 
     try {
-      FileChannel fileChannel = FileChannel.open(Paths.get(section.getPath()), StandardOpenOption.READ);
-      InputStream stream = Channels.newInputStream(fileChannel);
-      SimpleRemoteInputStream remoteInputStream = new SimpleRemoteInputStream(stream);
-      result.setRemoteInputStream(remoteInputStream);
+      // the client downloads the content through the transfer socket
+      Result editResult = new Result(1, String.valueOf(chatManager.getResultAddress(document.getName())));
+      transferServer.attach(editResult, Collections.singletonList(sectionStore.open(document, request.getSectionNum())), null);
       serverLogger.log(serverName, CommitEnum.EDIT + ": SUCCESS");
-      return new Result(1, String.valueOf(chatManager.getResultAddress(document.getName())), remoteInputStream);
+      return editResult;
     } catch (Exception ioe) {
       return new Result(0, "Exception while accessing the section");
     }
@@ -343,18 +738,25 @@ public class Server implements ServerInterface {
         return new Result(0, "The section is being edited by other");
       }
 
+      // spool the new content to disk, peers pull it from there while preparing
+      UUID transactionID = UUID.randomUUID();
+      String uploadPath = UPLOAD_DIR + transactionID;
       CommitParams commitParams = new CommitParams();
       commitParams.setUser(user);
       commitParams.setCommitEnum(CommitEnum.EDIT_END);
       commitParams.setDocName(request.getDocName());
       commitParams.setSectionNum(request.getSectionNum());
-      RemoteInputStream remoteInputStream = request.getRemoteInputStream();
-      commitParams.setBytes(RemoteInputStreamUtils.toBytes(remoteInputStream));
+      commitParams.setUploadPath(uploadPath);
+      commitParams.setUploadPort(currPort);
 
-      commitParams.setDocumentDatabase(documentDatabase);
-      commitParams.setChatManager(chatManager);
-
-      Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
+      Result result;
+      try {
+        commitParams.setUploadSize(spoolUpload(request.getRemoteInputStream(), DATA_DIR + uploadPath));
+        result = twoPhaseCommit(transactionID, commitParams);
+      } finally {
+        // the upload was renamed over the section if the transaction committed
+        new File(DATA_DIR + uploadPath).delete();
+      }
 
       if (result.getStatus() == 0) {
         return new Result(0, "Request aborted");
@@ -366,7 +768,6 @@ public class Server implements ServerInterface {
       e.printStackTrace();
       return new Result(0, "Request aborted");
     }
-
   }
 
   /**
@@ -445,20 +846,16 @@ public class Server implements ServerInterface {
     }
 
     User editingUser = section.getOccupant();
-    RemoteInputStream remoteInputStream;
+    Result result = new Result(1, editingUser == null ? "None" : editingUser.getUsername());
 
+    // the client downloads the content through the transfer socket
     try {
-      FileInputStream stream = new FileInputStream(section.getPath());
-      remoteInputStream = new SimpleRemoteInputStream(stream);
-    } catch (FileNotFoundException e) {
+      transferServer.attach(result, Collections.singletonList(sectionStore.open(document, request.getSectionNum())), null);
+    } catch (IOException e) {
       return new Result(0, "Failure accessing section.");
     }
     serverLogger.log(serverName, CommitEnum.SHOW_SECTION + ": SUCCESS");
-    if (editingUser == null) {
-      return new Result(1, "None", remoteInputStream);
-    }
-    serverLogger.log(serverName, CommitEnum.SHOW_SECTION + ": SUCCESS");
-    return new Result(1, editingUser.getUsername(), remoteInputStream);
+    return result;
   }
 
   /**
@@ -484,16 +881,11 @@ public class Server implements ServerInterface {
       return new Result(0, "Document does not exist.");
     }
 
-    Vector<InputStream> streamVector = new Vector<>();
-
+    // the client downloads the sections, each followed by a new line, through the transfer socket
+    Result result = new Result(1, String.join(",", document.getOccupiedSections()));
     try {
-      for (Section s : document.getSections()) {
-        streamVector.add(new FileInputStream(s.getPath()));
-        streamVector.add(new ByteArrayInputStream("\n".getBytes()));
-      }
-      SequenceInputStream sequenceInputStream = new SequenceInputStream(streamVector.elements());
-      RemoteInputStream remoteInputStream = new SimpleRemoteInputStream(sequenceInputStream);
-      return new Result(1, String.join(",", document.getOccupiedSections()), remoteInputStream);
+      transferServer.attach(result, sectionStore.openAll(document), "\n".getBytes());
+      return result;
     } catch (IOException ioe) {
       return new Result(0, "Failure accessing section.");
     }
@@ -566,8 +958,6 @@ public class Server implements ServerInterface {
     commitParams.setCommitEnum(CommitEnum.SHARE);
     commitParams.setDocName(request.getDocName());
     commitParams.setSectionNum(request.getSectionNum());
-    commitParams.setDocumentDatabase(documentDatabase);
-    commitParams.setUserDatabase(userDatabase);
     commitParams.setTargetUser(request.getTargetUser().getUsername());
 
     Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
@@ -591,12 +981,13 @@ public class Server implements ServerInterface {
   public Result getNotifications(User user) throws RemoteException {
     Result ret = new Result();
     User userDB = userDatabase.getUserByUsername(user.getUsername());
-    List<String> curNoti = userDB.getNotifications();
+    // a notification shared after this copy is not delivered now, and stays unread
+    List<String> curNoti = userDB.peekUnreadNotifications();
     if (curNoti.size() != 0) {
       CommitParams commitParams = new CommitParams();
       commitParams.setUser(user);
       commitParams.setCommitEnum(CommitEnum.GET_NOTIFICATIONS);
-      commitParams.setUserDatabase(userDatabase);
+      commitParams.setDeliveredNotifications(curNoti);
       ret.setUnreadNotifications(new ArrayList<>(curNoti));
       Result result = twoPhaseCommit(UUID.randomUUID(), commitParams);
 
@@ -617,117 +1008,511 @@ public class Server implements ServerInterface {
    */
   @Override
   public boolean recoverData(BackupData backupData) {
-    this.documentDatabase = backupData.getDocumentDatabase();
-    this.userDatabase = backupData.getUserDatabase();
-    this.aliveUserDatabase = backupData.getAliveUserDatabase();
-    this.chatManager = backupData.getChatManager();
+    // versions of the sections still on disk, taken before the databases of the helper replace ours
+    Map<String, Long> sectionVersions = new HashMap<>();
+    for (Document doc : documentDatabase.getDocuments()) {
+      List<Section> sections = doc.getSections();
+      for (int i = 0; i < sections.size(); i++) {
+        if (sectionStore.contains(doc, i)) {
+          sectionVersions.put(SectionStore.getKey(doc.getName(), i), sections.get(i).getVersion());
+        }
+      }
+    }
 
-    // clear previous data
+    // commits wait while the databases are swapped. Those applied here but not yet by the helper
+    // when it copied its databases are lost by the swap, the helper commits them shortly after.
+    Map<UUID, CommitParams> awaitedTransactions;
+    checkpointLock.writeLock().lock();
     try {
-      FileUtils.deleteDirectory(new File(DATA_DIR));
-      createDataDirectory();
-    } catch (IOException e) {
-      e.printStackTrace();
-      serverLogger.log(e.getMessage());
+      awaitedTransactions = transactionLog.getTransactions();
+      awaitedTransactions.keySet().removeAll(backupData.getCommittedTransactions().keySet());
+      this.documentDatabase = backupData.getDocumentDatabase();
+      this.userDatabase = backupData.getUserDatabase();
+      this.aliveUserDatabase = backupData.getAliveUserDatabase();
+      this.chatManager = backupData.getChatManager();
+      transactionLog.replace(backupData.getCommittedTransactions());
+    } finally {
+      checkpointLock.writeLock().unlock();
+    }
+
+    int sectionCount = 0;
+    for (Document doc : documentDatabase.getDocuments()) {
+      sectionCount += doc.getSections().size();
+    }
+
+    int helperPort = backupData.getHelperPort();
+    // replay the operations missed since our versions, compare digests if the helper log is too short
+    Collection<String> changedSections = getCatchUpSections(helperPort, sectionVersions);
+    if (changedSections == null) {
+      changedSections = getChangedSectionsByDigest(helperPort);
+      if (changedSections == null) return false;
+    }
+
+    // pull the changed sections from the helper one stream at a time, store them once per document
+    boolean recovered = true;
+    Map<String, List<Integer>> changedDocuments = new LinkedHashMap<>();
+    for (String sectionKey : changedSections) {
+      Document doc = getDocumentBySectionKey(sectionKey);
+      int sectionNum = doc == null ? -1 : getSectionIndex(doc, sectionKey);
+      if (sectionNum < 0) {
+        recovered = false;
+        continue;
+      }
+      changedDocuments.computeIfAbsent(doc.getName(), docName -> new ArrayList<>()).add(sectionNum);
+    }
+    for (Map.Entry<String, List<Integer>> changedDocument : changedDocuments.entrySet()) {
+      Document doc = documentDatabase.getDocumentByName(changedDocument.getKey());
+      if (!recoverDocument(helperPort, doc, changedDocument.getValue())) {
+        recovered = false;
+      }
     }
+    // contents cached before the recovery may not match the recovered versions
+    sectionCache.clear();
+    serverLogger.log(serverName, "Recovered " + changedSections.size() + " of " + sectionCount + " sections");
+    // commits applied by the helper since it copied its databases
+    if (!awaitTransactions(helperPort, awaitedTransactions)) recovered = false;
+    // persist the recovered databases
+    checkpoint();
+    return recovered;
+  }
 
-    for (Document doc : documentDatabase.getDocuments()) {
-      for (Section section : doc.getSections()) {
-        String previousPath = section.getPath();
-        String pattern = "(.*data_)([0-9]+)(/.*)";
-        String currPath = previousPath.replaceAll(pattern, "$1" + currPort + "$3");
-        section.setPath(currPath);
+  /**
+   * Replay the transactions committed by the helper since the databases were copied, until the
+   * helper committed the awaited ones too
+   *
+   * @param helperPort          port# of the helper server
+   * @param awaitedTransactions transactions lost by the swap of the databases
+   * @return true-> success, false-> the helper did not commit them within their lease or cannot be reached
+   */
+  private boolean awaitTransactions(int helperPort, Map<UUID, CommitParams> awaitedTransactions) {
+    long deadline = System.currentTimeMillis();
+    for (CommitParams commitParams : awaitedTransactions.values()) {
+      deadline = Math.max(deadline, System.currentTimeMillis() + getLeaseMs(commitParams));
+    }
+    while (true) {
+      if (!catchUp(helperPort)) return false;
+      awaitedTransactions.keySet().removeAll(transactionLog.getTransactionIDs());
+      if (awaitedTransactions.isEmpty()) return true;
+      if (System.currentTimeMillis() >= deadline) {
+        serverLogger.log(serverName, awaitedTransactions.size() + " transactions not committed by "
+                + Server.class.getSimpleName() + helperPort);
+        return false;
+      }
+      try {
+        Thread.sleep(peerTimeoutMs / 4);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
       }
     }
+  }
 
-    Map<String, byte[]> fileStreamMap = backupData.getFileStreamMap();
-    for (String path : fileStreamMap.keySet()) {
+  /**
+   * Replay the transactions committed by a helper that this server missed, without replacing the
+   * databases
+   *
+   * @param helperPort port# of the helper server
+   * @return true-> success, false-> the helper no longer logs all of them or cannot be reached
+   */
+  @Override
+  public boolean catchUp(int helperPort) {
+    Set<UUID> knownTransactions = transactionLog.getTransactionIDs();
+    Map<UUID, CommitParams> missedTransactions;
+    try {
+      missedTransactions = stubCache.callServer(helperPort, stub -> stub.getMissedTransactions(knownTransactions));
+    } catch (Exception e) {
+      serverLogger.log(serverName, e.getMessage());
+      return false;
+    }
+    if (missedTransactions == null) return false;
+    for (Map.Entry<UUID, CommitParams> transaction : missedTransactions.entrySet()) {
+      CommitParams commitParams = transaction.getValue();
+      if (commitParams.getCommitEnum() == CommitEnum.EDIT_END) {
+        // the content is not logged, the current content of the section is pulled from the helper
+        String uploadPath = UPLOAD_DIR + UUID.randomUUID();
+        String sectionKey = SectionStore.getKey(commitParams.getDocName(), commitParams.getSectionNum());
+        if (!downloadFile(helperPort, sectionKey, DATA_DIR + uploadPath)) return false;
+        commitParams.setUploadPath(uploadPath);
+      }
       try {
-//        System.out.println(path);
-        File file = new File(path);
-        file.getParentFile().mkdirs();
-        FileUtils.writeByteArrayToFile(file, fileStreamMap.get(path));
-      } catch (Exception e) {
-        e.printStackTrace();
+        executeCommit(transaction.getKey(), commitParams);
+      } catch (IOException e) {
+        serverLogger.log(serverName, "Commit failure: " + e.getMessage());
         return false;
       }
     }
+    if (!missedTransactions.isEmpty()) {
+      serverLogger.log(serverName, "Replayed " + missedTransactions.size() + " transactions from "
+              + Server.class.getSimpleName() + helperPort);
+    }
     return true;
   }
 
   /**
-   * Help target server recover the data
+   * Get the committed transactions a peer missed
    *
-   * @param targetPort port# of the target server
-   * @return true-> success, false-> fail
+   * @param knownTransactions ids of the transactions committed by the peer
+   * @return missed transactions in commit order, or null if the log no longer covers them
    */
   @Override
-  public boolean helpRecoverData(int targetPort) {
-    DocumentDatabase documentDatabase = this.documentDatabase;
-    UserDatabase userDatabase = this.userDatabase;
-    AliveUserDatabase aliveUserDatabase = this.aliveUserDatabase;
-    ChatManager chatManager = this.chatManager;
-    Map<String, byte[]> fileStreamMap = new HashMap<>();
-
-    // user file
-    // DATA_DIR + "DocDB.dat"
-    String targetDataDir = "./server_data_" + targetPort + "/";
-    // put userDatabase dat file
-    File file = new File(DATA_DIR + USER_DB_NAME);
-    if (file.isFile()) {
-      fileStreamMap.put(targetDataDir + USER_DB_NAME, getBytes(DATA_DIR + USER_DB_NAME));
-    }
-    file = new File(DATA_DIR + DOC_DB_NAME);
-    if (file.isFile()) {
-      // put DocumentDatabase dat file
-      fileStreamMap.put(targetDataDir + DOC_DB_NAME, getBytes(DATA_DIR + DOC_DB_NAME));
-    }
-
-    // put section files
-    for (Document doc : documentDatabase.getDocuments()) {
-      for (Section section : doc.getSections()) {
-        String currPath = section.getPath();
-//        System.out.println("origin path " + currPath);
-        String pattern = "(.*data_)([0-9]+)(/.*)";
-        // replace port in the path
-        String targetPath = currPath.replaceAll(pattern, "$1" + targetPort + "$3");
-        // change path stored in database
-//        System.out.println("target path " + currPath);
-        file = new File(currPath);
-        if (file.isFile()) {
-//          System.out.println("put path " + currPath);
-          fileStreamMap.put(targetPath, getBytes(currPath));
+  public Map<UUID, CommitParams> getMissedTransactions(Set<UUID> knownTransactions) {
+    return transactionLog.getMissed(knownTransactions);
+  }
+
+  /**
+   * Download the changed sections of a document from the helper server and store them at once
+   *
+   * @param helperPort  port# of the helper server
+   * @param doc         document
+   * @param sectionNums indexes of the changed sections
+   * @return true-> success, false-> fail
+   */
+  private boolean recoverDocument(int helperPort, Document doc, List<Integer> sectionNums) {
+    Map<Integer, Path> contents = new HashMap<>();
+    try {
+      for (int sectionNum : sectionNums) {
+        String downloadPath = DATA_DIR + UPLOAD_DIR + UUID.randomUUID();
+        if (!downloadFile(helperPort, SectionStore.getKey(doc.getName(), sectionNum), downloadPath)) return false;
+        contents.put(sectionNum, Paths.get(downloadPath));
+      }
+      for (int sectionNum : sectionNums) {
+        if (!sectionStore.contains(doc, sectionNum)) sectionStore.create(doc);
+      }
+      sectionStore.replaceAll(doc, contents);
+      return true;
+    } catch (IOException e) {
+      serverLogger.log(serverName, e.getMessage());
+      return false;
+    } finally {
+      // downloads that were not consumed
+      for (Path content : contents.values()) content.toFile().delete();
+    }
+  }
+
+  /**
+   * Get the document of a section from the section key
+   *
+   * @param sectionKey section key, see SectionStore.getKey
+   * @return the document, or null if it does not exist
+   */
+  private Document getDocumentBySectionKey(String sectionKey) {
+    int separator = sectionKey.lastIndexOf('/');
+    return separator < 0 ? null : documentDatabase.getDocumentByName(sectionKey.substring(0, separator));
+  }
+
+  /**
+   * Get the index of a section from the section key
+   *
+   * @param document   document of the section
+   * @param sectionKey section key, see SectionStore.getKey
+   * @return section index, or -1 if the document has no such section
+   */
+  private int getSectionIndex(Document document, String sectionKey) {
+    for (int i = 0; i < document.getSections().size(); i++) {
+      if (SectionStore.getKey(document.getName(), i).equals(sectionKey)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Get the sections modified by the operations the helper committed after our section versions
+   *
+   * @param helperPort      port# of the helper server
+   * @param sectionVersions version of each section still on disk, by relative path
+   * @return relative paths of the sections to download, or null if the helper log does not cover
+   * our versions
+   */
+  private Collection<String> getCatchUpSections(int helperPort, Map<String, Long> sectionVersions) {
+    List<CommitParams> operations;
+    try {
+      operations = stubCache.callServer(helperPort, stub -> stub.getCatchUpOperations(sectionVersions));
+    } catch (Exception e) {
+      serverLogger.log(serverName, e.getMessage());
+      return null;
+    }
+    if (operations == null) return null;
+
+    Set<String> changedSections = new LinkedHashSet<>();
+    for (CommitParams operation : operations) {
+      Document doc = documentDatabase.getDocumentByName(operation.getDocName());
+      if (doc == null) continue;
+      if (operation.getCommitEnum() == CommitEnum.CREATE_DOCUMENT) {
+        for (int i = 0; i < doc.getSections().size(); i++) {
+          changedSections.add(SectionStore.getKey(doc.getName(), i));
         }
+      } else if (operation.getCommitEnum() == CommitEnum.EDIT_END) {
+        // the operation does not carry the content, the section is downloaded once at its latest version
+        changedSections.add(SectionStore.getKey(doc.getName(), operation.getSectionNum()));
       }
     }
-    BackupData backupData = new BackupData(documentDatabase, userDatabase, aliveUserDatabase, chatManager, fileStreamMap);
+    serverLogger.log(serverName, "Replaying " + operations.size() + " operations from " + Server.class.getSimpleName() + helperPort);
+    return changedSections;
+  }
 
+  /**
+   * Get the sections whose content differs from the helper by comparing digests
+   *
+   * @param helperPort port# of the helper server
+   * @return relative paths of the sections to download, or null if the helper cannot be reached
+   */
+  private Collection<String> getChangedSectionsByDigest(int helperPort) {
+    // advertise the digests of the sections still on disk, the helper answers which ones changed
+    Map<String, String> sectionDigests = new HashMap<>();
+    for (Document doc : documentDatabase.getDocuments()) {
+      List<Section> sections = doc.getSections();
+      for (int i = 0; i < sections.size(); i++) {
+        if (sectionStore.contains(doc, i)) {
+          String digest = getDigest(doc, i);
+          if (digest != null) sectionDigests.put(SectionStore.getKey(doc.getName(), i), digest);
+        }
+      }
+    }
     try {
-      Registry registry = LocateRegistry.getRegistry(targetPort);
-      ServerInterface stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + targetPort);
-      stub.recoverData(backupData);
-      return true;
+      return stubCache.callServer(helperPort, stub -> stub.getChangedSections(sectionDigests));
     } catch (Exception e) {
-      e.printStackTrace();
       serverLogger.log(serverName, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Spool the content uploaded by a client to a local file
+   *
+   * @param remoteInputStream uploaded content
+   * @param path              spool file path
+   * @return size of the content
+   * @throws IOException if the upload cannot be read or written
+   */
+  private long spoolUpload(RemoteInputStream remoteInputStream, String path) throws IOException {
+    try (InputStream input = RemoteInputStreamClient.wrap(remoteInputStream);
+         FileOutputStream output = new FileOutputStream(path)) {
+      long size = IOUtils.copyLarge(input, output);
+      // durable before it can be renamed over the section
+      output.getFD().sync();
+      return size;
+    }
+  }
+
+  /**
+   * Participant side of EDIT_END: pull the content spooled by the coordinator to the same path
+   *
+   * @param commitParams EDIT_END commit parameters
+   * @return true if the whole content was received
+   */
+  private boolean downloadUpload(CommitParams commitParams) {
+    String uploadPath = DATA_DIR + commitParams.getUploadPath();
+    if (!downloadFile(commitParams.getUploadPort(), commitParams.getUploadPath(), uploadPath)) return false;
+    if (new File(uploadPath).length() != commitParams.getUploadSize()) {
+      new File(uploadPath).delete();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Download a file or a section of another server in chunks. The content goes to a partial file
+   * that is renamed over the target once complete; if the stream breaks, the download resumes from
+   * the bytes already received.
+   *
+   * @param port         port# of the server holding the file
+   * @param relativePath path relative to the data directory of the other server
+   * @param path         local file path
+   * @return true-> success, false-> fail
+   */
+  private boolean downloadFile(int port, String relativePath, String path) {
+    File partialFile = new File(path + ".part");
+    // a partial file left by an earlier attempt may belong to an older version
+    partialFile.delete();
+    partialFile.getParentFile().mkdirs();
+    for (int attempt = 0; attempt < RECOVERY_ATTEMPTS; attempt++) {
+      long offset = partialFile.length();
+      try (FileOutputStream output = new FileOutputStream(partialFile, true)) {
+        RemoteInputStream remoteInputStream = stubCache.callServer(port, stub -> stub.fetchSection(relativePath, offset));
+        try (InputStream input = RemoteInputStreamClient.wrap(remoteInputStream)) {
+          IOUtils.copyLarge(input, output);
+        }
+        output.getFD().sync();
+      } catch (Exception e) {
+        serverLogger.log(serverName, "Downloading " + relativePath + " interrupted at "
+                + partialFile.length() + " bytes: " + e.getMessage());
+        continue;
+      }
+      try {
+        Files.move(partialFile.toPath(), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+      } catch (IOException e) {
+        serverLogger.log(serverName, e.getMessage());
+        return false;
+      }
     }
     return false;
   }
 
   /**
-   * Get byte array from file
+   * Get the logged operations a recovering server missed
    *
-   * @param filePath
-   * @return byte array
+   * @param sectionVersions version of each section the recovering server has, by relative path
+   * @return CREATE_DOCUMENT and EDIT_END operations after those versions in commit order, or null
+   * if some of them were already dropped from the operation log
    */
-  private byte[] getBytes(String filePath) {
-    try (FileChannel fileChannel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
-         InputStream stream = Channels.newInputStream(fileChannel)) {
-      return IOUtils.toByteArray(stream);
+  @Override
+  public List<CommitParams> getCatchUpOperations(Map<String, Long> sectionVersions) {
+    List<CommitParams> operations = operationLog.getOperations();
+    // first logged EDIT_END version of each section and documents created within the log
+    Map<String, Long> firstLoggedVersions = new HashMap<>();
+    Set<String> createdDocuments = new HashSet<>();
+    for (CommitParams operation : operations) {
+      if (operation.getCommitEnum() == CommitEnum.CREATE_DOCUMENT) {
+        createdDocuments.add(operation.getDocName());
+      } else if (operation.getCommitEnum() == CommitEnum.EDIT_END) {
+        firstLoggedVersions.putIfAbsent(operation.getDocName() + "#" + operation.getSectionNum(), operation.getVersion());
+      }
+    }
+
+    // remote version of each section, the log must hold every version after it
+    Map<String, Long> remoteVersions = new HashMap<>();
+    Set<String> missingDocuments = new HashSet<>();
+    for (Document doc : documentDatabase.getDocuments()) {
+      List<Section> sections = doc.getSections();
+      for (int i = 0; i < sections.size(); i++) {
+        String sectionKey = doc.getName() + "#" + i;
+        Long remoteVersion = sectionVersions.get(SectionStore.getKey(doc.getName(), i));
+        long localVersion = sections.get(i).getVersion();
+        if (remoteVersion == null) {
+          // the whole document is missing: it must have been created within the log
+          if (!createdDocuments.contains(doc.getName())) return null;
+          missingDocuments.add(doc.getName());
+          remoteVersion = 0L;
+        } else if (remoteVersion > localVersion) {
+          return null;
+        }
+        if (remoteVersion < localVersion) {
+          Long firstLoggedVersion = firstLoggedVersions.get(sectionKey);
+          if (firstLoggedVersion == null || firstLoggedVersion > remoteVersion + 1) return null;
+        }
+        remoteVersions.put(sectionKey, remoteVersion);
+      }
+    }
+
+    List<CommitParams> missedOperations = new ArrayList<>();
+    for (CommitParams operation : operations) {
+      if (operation.getCommitEnum() == CommitEnum.CREATE_DOCUMENT) {
+        if (missingDocuments.contains(operation.getDocName())) {
+          missedOperations.add(operation);
+        }
+      } else if (operation.getCommitEnum() == CommitEnum.EDIT_END) {
+        Long remoteVersion = remoteVersions.get(operation.getDocName() + "#" + operation.getSectionNum());
+        if (remoteVersion != null && operation.getVersion() > remoteVersion) {
+          missedOperations.add(operation);
+        }
+      }
+    }
+    return missedOperations;
+  }
+
+  /**
+   * Compare the section digests of a recovering server with the local section files
+   *
+   * @param sectionDigests digest of each section the recovering server has, by relative path
+   * @return relative paths of the sections that are missing or different on the recovering server
+   */
+  @Override
+  public List<String> getChangedSections(Map<String, String> sectionDigests) {
+    List<String> changedSections = new ArrayList<>();
+    for (Document doc : documentDatabase.getDocuments()) {
+      List<Section> sections = doc.getSections();
+      for (int i = 0; i < sections.size(); i++) {
+        String sectionKey = SectionStore.getKey(doc.getName(), i);
+        String remoteDigest = sectionDigests.get(sectionKey);
+        if (remoteDigest == null || !remoteDigest.equals(getDigest(doc, i))) {
+          changedSections.add(sectionKey);
+        }
+      }
+    }
+    return changedSections;
+  }
+
+  /**
+   * Get the MD5 digest of a section content
+   *
+   * @param document   document
+   * @param sectionNum section index
+   * @return hex digest, or null if the section cannot be read
+   */
+  private String getDigest(Document document, int sectionNum) {
+    try (InputStream input = sectionStore.open(document, sectionNum).newInputStream(0)) {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        md5.update(buffer, 0, read);
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : md5.digest()) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
     } catch (Exception e) {
-      serverLogger.log("Exception: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Stream a section file to a recovering server, or a spooled upload to a participant, starting at
+   * the given offset
+   *
+   * @param relativePath section key (see SectionStore.getKey) or upload path relative to the data
+   *                     directory
+   * @param offset       number of bytes the other server already has
+   * @return remote stream of the remaining content
+   * @throws RemoteException if the section cannot be read
+   */
+  @Override
+  public RemoteInputStream fetchSection(String relativePath, long offset) throws RemoteException {
+    try {
+      if (relativePath.contains("..")) throw new FileNotFoundException(relativePath);
+      if (relativePath.startsWith(UPLOAD_DIR)) {
+        FileChannel fileChannel = FileChannel.open(Paths.get(DATA_DIR + relativePath), StandardOpenOption.READ);
+        fileChannel.position(offset);
+        return new SimpleRemoteInputStream(Channels.newInputStream(fileChannel));
+      }
+      Document document = getDocumentBySectionKey(relativePath);
+      int sectionNum = document == null ? -1 : getSectionIndex(document, relativePath);
+      if (sectionNum < 0) throw new FileNotFoundException(relativePath);
+      return new SimpleRemoteInputStream(sectionStore.open(document, sectionNum).newInputStream(offset));
+    } catch (IOException e) {
+      throw new RemoteException("Unable to read section " + relativePath, e);
     }
-    return null;
+  }
+
+  /**
+   * Help target server recover the data
+   *
+   * @param targetHost host of the target server, which may not be a member yet
+   * @param targetPort port# of the target server
+   * @return true-> success, false-> fail
+   */
+  @Override
+  public boolean helpRecoverData(String targetHost, int targetPort) {
+    stubCache.setHost(targetPort, targetHost);
+    // only the metadata is sent, the target pulls the section files afterwards. Commits wait while
+    // the databases are copied, so the copy matches the committed transactions sent with it.
+    BackupData backupData;
+    checkpointLock.writeLock().lock();
+    try {
+      backupData = SerializationUtils.clone(new BackupData(documentDatabase, userDatabase, aliveUserDatabase,
+              chatManager, transactionLog.getTransactions(), currPort));
+    } finally {
+      checkpointLock.writeLock().unlock();
+    }
+
+    try {
+      return stubCache.callServer(targetPort, stub -> stub.recoverData(backupData));
+    } catch (Exception e) {
+      e.printStackTrace();
+      serverLogger.log(serverName, e.getMessage());
+    }
+    return false;
   }
 
 //  private InputStream getInputStream(RemoteInputStream remoteInputStream) {
@@ -743,22 +1528,34 @@ public class Server implements ServerInterface {
    * initialize user database
    *
    * @return userDB
+   * @throws RemoteException if a snapshot exists but cannot be loaded
    */
-  private UserDatabase initUserDB() {
-    UserDatabase loadedUsersDB = loadUserDB();
-    return loadedUsersDB == null ? new UserDatabase() : loadedUsersDB;
+  private UserDatabase initUserDB() throws RemoteException {
+    try {
+      UserDatabase loadedUsersDB = loadUserDB();
+      return loadedUsersDB == null ? new UserDatabase() : loadedUsersDB;
+    } catch (IOException e) {
+      // starting empty would let the next checkpoint overwrite the snapshot and lose its data
+      throw new RemoteException("Unable to load the user database of " + serverName, e);
+    }
   }
 
   /**
    * load user database
    *
-   * @return userDB
+   * @return userDB, or null if there is no snapshot
+   * @throws IOException if the snapshot is corrupted or cannot be read
    */
-  private UserDatabase loadUserDB() {
-    try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(DATA_DIR + USER_DB_NAME))) {
+  private UserDatabase loadUserDB() throws IOException {
+    if (new File(DATA_DIR + USER_DB_NAME).isFile()) {
+      return DatabaseSnapshot.readUsers(DATA_DIR + USER_DB_NAME);
+    }
+    try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(DATA_DIR + LEGACY_USER_DB_NAME))) {
       return (UserDatabase) input.readObject();
-    } catch (IOException | ClassNotFoundException e) {
+    } catch (FileNotFoundException e) {
       return null;
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unreadable snapshot " + LEGACY_USER_DB_NAME, e);
     }
   }
 
@@ -766,22 +1563,34 @@ public class Server implements ServerInterface {
    * initialize document database
    *
    * @return documentDB
+   * @throws RemoteException if a snapshot exists but cannot be loaded
    */
-  private DocumentDatabase initDocumentDB() {
-    DocumentDatabase loadedDocumentsDB = loadDocumentDB();
-    return loadedDocumentsDB == null ? new DocumentDatabase() : loadedDocumentsDB;
+  private DocumentDatabase initDocumentDB() throws RemoteException {
+    try {
+      DocumentDatabase loadedDocumentsDB = loadDocumentDB();
+      return loadedDocumentsDB == null ? new DocumentDatabase() : loadedDocumentsDB;
+    } catch (IOException e) {
+      // starting empty would let the next checkpoint overwrite the snapshot and lose its data
+      throw new RemoteException("Unable to load the document database of " + serverName, e);
+    }
   }
 
   /**
    * load document database
    *
-   * @return documentDB
+   * @return documentDB, or null if there is no snapshot
+   * @throws IOException if the snapshot is corrupted or cannot be read
    */
-  private DocumentDatabase loadDocumentDB() {
-    try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(DATA_DIR + DOC_DB_NAME))) {
+  private DocumentDatabase loadDocumentDB() throws IOException {
+    if (new File(DATA_DIR + DOC_DB_NAME).isFile()) {
+      return DatabaseSnapshot.readDocuments(DATA_DIR + DOC_DB_NAME);
+    }
+    try (ObjectInputStream input = new ObjectInputStream(new FileInputStream(DATA_DIR + LEGACY_DOC_DB_NAME))) {
       return (DocumentDatabase) input.readObject();
-    } catch (IOException | ClassNotFoundException e) {
+    } catch (FileNotFoundException e) {
       return null;
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unreadable snapshot " + LEGACY_DOC_DB_NAME, e);
     }
   }
 
@@ -791,6 +1600,13 @@ public class Server implements ServerInterface {
   private void createDataDirectory() {
     File dataDir = new File(DATA_DIR);
     if (!dataDir.isDirectory() || !dataDir.exists()) dataDir.mkdirs();
+    // uploads left by transactions interrupted by a crash are never committed
+    File uploadDir = new File(DATA_DIR + UPLOAD_DIR);
+    File[] staleUploads = uploadDir.listFiles();
+    if (staleUploads != null) {
+      for (File staleUpload : staleUploads) staleUpload.delete();
+    }
+    uploadDir.mkdirs();
   }
 
   /**
@@ -799,8 +1615,6 @@ public class Server implements ServerInterface {
    * @return 2pc result: status 0-> abort, 1-> commit, and message
    */
   private Result twoPhaseCommit(UUID transactionID, CommitParams commitParams) {
-    // update database stored in commitParams
-    commitParams = updateCommitParamsDatabase(commitParams);
     if (!prepare(transactionID, commitParams)) {
       commitOrAbort(transactionID, false);
       return new Result(0, "Request Aborted.");
@@ -810,59 +1624,6 @@ public class Server implements ServerInterface {
     }
   }
 
-  /**
-   * Update commit params database with userDB or aliveUserDB (not documentDB)
-   *
-   * @param commitParams
-   * @return commitParams
-   */
-  CommitParams updateCommitParamsDatabase(CommitParams commitParams) {
-    // documentDB should not update in this step
-    switch (commitParams.getCommitEnum()) {
-      // create user: add new user to userDatabase
-      case CREATE_USER:
-        commitParams.getUserDatabase().addNewUser(commitParams.getUser().getUsername(), commitParams.getUser().getPassword());
-        break;
-      // login: create new OnlineUserRecord (generate token) and put into aliveUserDatabase
-      case LOGIN:
-        commitParams.getAliveUserDatabase().login(commitParams.getUser());
-        break;
-      // logout: set token to null
-      case LOGOUT:
-        String username = commitParams.getUser().getUsername();
-        commitParams.getAliveUserDatabase().getOnlineUserRecord(username).setToken(null);
-        break;
-      // edit: set occupant of the section in documentDatabase
-      // cannot update db here because section path are different in different servers
-      case EDIT:
-        String docName = commitParams.getDocName();
-        commitParams.getChatManager().getChatDatabase().put(docName, commitParams.getMulticastAddress());
-        break;
-      // edit end: write input stream into section path
-      // set occupant to null in documentDatabase
-      // cannot update db here because section path are different in different servers
-      case EDIT_END:
-        docName = commitParams.getDocName();
-        commitParams.getChatManager().getChatDatabase().remove(docName);
-        break;
-      // create document: create a new document in documentDatabase
-      case CREATE_DOCUMENT:
-//        commitParams.getDocumentDatabase().createNewDocument(DATA_DIR,
-//                commitParams.getSectionNum(), commitParams.getDocName(), commitParams.getUser());
-        break;
-      // share doc: add user to authors of a document in documentDatabase
-      case SHARE:
-        User sharedUser = commitParams.getUserDatabase().getUserByUsername(commitParams.getTargetUser());
-        sharedUser.pushNewNotification(commitParams.getDocName());
-        break;
-      case GET_NOTIFICATIONS:
-        commitParams.getUserDatabase().getUserByUsername(commitParams.getUser().getUsername())
-                .getNotifications().clear();
-        break;
-    }
-    return commitParams;
-  }
-
   /**
    * Coordinator method for 2PC PhaseI: send prepare request to all peers. If all live peers
    * responded with `prepare`, return true.
@@ -873,70 +1634,61 @@ public class Server implements ServerInterface {
    */
   @Override
   public boolean prepare(UUID transactionID, CommitParams commitParams) {
-    if (getServerStatus(currPort) != 0) return false;
-    // change current server status: Empty -> Busy
-    setServerStatus(currPort, 1);
+    int[] peers = getPeers(currPort);
+    ClusterView view = clusterView;
+    if (view != null && !view.isMember(currPort)) {
+      serverLogger.log(serverName, "Abort: not a member of the cluster");
+      return false;
+    }
+    commitParams.setCoordinatorPort(currPort);
+    commitParams.setMembershipEpoch(view == null ? 0 : view.getMembershipEpoch());
+    // lock the resources modified by the transaction, abort on conflict
+    if (!lockTable.tryLock(transactionID, commitParams)) return false;
     // add the <transactionID, CommitParams> to tempStorage
     addToTempStorage(transactionID, commitParams);
 
-    int[] peers = getPeers(currPort);
     int numOfPeers = peers.length;
 
     // put transactionID into prepareResponseMap
-    prepareResponseMap.put(transactionID, new ConcurrentHashMap<>());
+    ConcurrentMap<Integer, Boolean> prepareAcks = new ConcurrentHashMap<>();
+    prepareResponseMap.put(transactionID, prepareAcks);
+    preparedPeers.put(transactionID, peers);
     serverLogger.log(serverName, "Prepare: sent");
+    long startTime = System.nanoTime();
+    // peers download the uploaded section before they answer
+    long prepareTimeoutMs = getPrepareTimeoutMs(commitParams);
+    List<Runnable> calls = new ArrayList<>();
     for (int peerPort : peers) {
-      try {
-        Registry registry = LocateRegistry.getRegistry(peerPort);
-        ServerInterface stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + peerPort);
-        boolean prepareAck = stub.receivePrepare(transactionID, commitParams);
-        prepareResponseMap.get(transactionID).put(peerPort, prepareAck);
-      } catch (Exception e) {
-        //serverLogger.log(serverName, "Exception: " + e.getMessage());
-      }
+      calls.add(() -> {
+        try {
+          boolean prepareAck = stubCache.callServer(peerPort, prepareTimeoutMs,
+                  stub -> stub.receivePrepare(transactionID, commitParams));
+          prepareAcks.put(peerPort, prepareAck);
+        } catch (Exception e) {
+          //serverLogger.log(serverName, "Exception: " + e.getMessage());
+        }
+      });
     }
+    invokePeers(calls, prepareTimeoutMs);
+    serverLogger.log(serverName, "Prepare: " + prepareAcks.size() + "/" + numOfPeers + " acks in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
 
     int ackCount = 0;
     int agreeAckCount = 0;
-    // retry for three times
-    int retry = 3;
-    while (retry > 0) {
-      if (retry < 3) {
-        try {
-          // pause for 0.5 secs
-          Thread.sleep(300);
-        } catch (InterruptedException e) {
-          serverLogger.log(serverName, e.getMessage());
-        }
-      }
-      ackCount = 0;
-      agreeAckCount = 0;
-      retry--;
-      Map<Integer, Boolean> ackMap = prepareResponseMap.get(transactionID);
-      for (int peerPort : peers) {
-        if (ackMap.get(peerPort) != null) {
-          if (ackMap.get(peerPort)) {
-            ackCount++;
-            agreeAckCount++;
-          } else {
-            ackCount++;
-          }
-        }
-      }
-
-      if (ackCount == numOfPeers) {
-        return agreeAckCount == numOfPeers;
+    for (int peerPort : peers) {
+      Boolean prepareAck = prepareAcks.get(peerPort);
+      if (prepareAck != null) {
+        ackCount++;
+        if (prepareAck) agreeAckCount++;
       }
     }
 
-    // change status of dead server
-    for (int peerPort : peers) {
-      if (prepareResponseMap.get(transactionID).get(peerPort) == null) {
-        setServerStatus(peerPort, 2);
-        sendMessageToCentral(Server.class.getSimpleName() + peerPort + " is down!");
-      }
+    if (ackCount == numOfPeers) {
+      return agreeAckCount == numOfPeers;
     }
 
+    // peers that answer late still get the decision, commitOrAbort reports those that miss a commit
+
     // if 0 abort ack && receive agree acks from more than half peers, commit, otherwise abort
     return ackCount == agreeAckCount && ackCount >= (numOfPeers / 2);
   }
@@ -951,12 +1703,21 @@ public class Server implements ServerInterface {
   @Override
   public boolean receivePrepare(UUID transactionID, CommitParams commitParams) {
     serverLogger.log(serverName, "Prepare: received");
-    if (getServerStatus(currPort) != 0) {
+    if (!isCoordinatedByMember(commitParams)) {
+      serverLogger.log(serverName, "Abort: sent, Server" + commitParams.getCoordinatorPort()
+              + " is not a member at membership epoch " + commitParams.getMembershipEpoch());
+      return false;
+    } else if (!lockTable.tryLock(transactionID, commitParams)) {
+      serverLogger.log(serverName, "Abort: sent");
+      return false;
+    } else if (commitParams.getUploadPath() != null && !downloadUpload(commitParams)) {
+      lockTable.release(transactionID);
       serverLogger.log(serverName, "Abort: sent");
       return false;
     } else {
-      setServerStatus(currPort, 1);
       addToTempStorage(transactionID, commitParams);
+      // the coordinator may stop waiting for this answer, abort if no decision ever arrives
+      lockTable.lease(transactionID, System.currentTimeMillis() + getLeaseMs(commitParams));
       serverLogger.log(serverName, "Agree: sent");
       return true;
     }
@@ -971,70 +1732,38 @@ public class Server implements ServerInterface {
    */
   @Override
   public void commitOrAbort(UUID transactionID, boolean ack) {
-    int[] peers = getPeers(currPort);
+    // every peer that was sent a prepare gets the decision, even if its answer came too late: it may
+    // hold locks for the transaction. Empty if the coordinator aborted before sending any prepare.
+    int[] peers = preparedPeers.getOrDefault(transactionID, new int[0]);
     int numOfPeers = peers.length;
-    commitResponseMap.put(transactionID, new ConcurrentHashMap<>());
+    ConcurrentMap<Integer, Boolean> commitAcks = new ConcurrentHashMap<>();
+    commitResponseMap.put(transactionID, commitAcks);
 
-    if (ack) {
-      serverLogger.log(serverName, "Commit: sent");
-      for (int peerPort : peers) {
-        if (prepareResponseMap.get(transactionID).get(peerPort) != null) {
-          try {
-            Registry registry = LocateRegistry.getRegistry(peerPort);
-            ServerInterface stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + peerPort);
-            boolean commitAck = stub.receiveCommit(transactionID);
-            commitResponseMap.get(transactionID).put(peerPort, commitAck);
-          } catch (Exception e) {
-            //serverLogger.log(serverName, "Exception: " + e.getMessage());
-          }
-        }
-      }
-    } else {
-      serverLogger.log(serverName, "Abort: sent");
-      for (int peerPort : peers) {
-        if (prepareResponseMap.get(transactionID).get(peerPort) != null && prepareResponseMap.get(transactionID).get(peerPort)) {
-          try {
-            Registry registry = LocateRegistry.getRegistry(peerPort);
-            ServerInterface stub = (ServerInterface) registry.lookup(Server.class.getSimpleName() + peerPort);
-            boolean commitAck = stub.receiveAbort(transactionID);
-            commitResponseMap.get(transactionID).put(peerPort, commitAck);
-          } catch (Exception e) {
-            //serverLogger.log(serverName, "Exception: " + e.getMessage());
-          }
-        }
-      }
-    }
-
-    int ackCount;
-    int retry = 3;
-    while (retry > 0) {
-      if (retry < 3) {
+    long startTime = System.nanoTime();
+    List<Runnable> calls = new ArrayList<>();
+    serverLogger.log(serverName, ack ? "Commit: sent" : "Abort: sent");
+    for (int peerPort : peers) {
+      calls.add(() -> {
         try {
-          Thread.sleep(300);
-        } catch (InterruptedException e) {
-          serverLogger.log(serverName, e.getMessage());
+          boolean commitAck = stubCache.callServer(peerPort, peerTimeoutMs,
+                  stub -> ack ? stub.receiveCommit(transactionID) : stub.receiveAbort(transactionID));
+          commitAcks.put(peerPort, commitAck);
+        } catch (Exception e) {
+          //serverLogger.log(serverName, "Exception: " + e.getMessage());
         }
-      }
-
-      ackCount = 0;
-      retry--;
-
-      Map<Integer, Boolean> ackMap = commitResponseMap.get(transactionID);
-
-      for (int peerPort : peers) {
-        if (ackMap.get(peerPort) != null) {
-          ackCount++;
-        }
-      }
-
-      if (ackCount == numOfPeers) break;
+      });
     }
+    invokePeers(calls, peerTimeoutMs);
+    serverLogger.log(serverName, (ack ? "Commit: " : "Abort: ") + commitAcks.size() + "/" + numOfPeers
+            + " acks in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
 
-    for (int peerPort : peers) {
-      if (commitResponseMap.get(transactionID).get(peerPort) == null) {
-        setServerStatus(peerPort, 2);
-        sendMessageToCentral(Server.class.getSimpleName() + peerPort + " is down!");
+    // peers that did not apply the commit missed it; an unanswered abort only leaves locks that expire
+    if (ack) {
+      List<Integer> downPeers = new ArrayList<>();
+      for (int peerPort : peers) {
+        if (!Boolean.TRUE.equals(commitAcks.get(peerPort))) downPeers.add(peerPort);
       }
+      reportDownPeers(downPeers);
     }
 
     if (ack) {
@@ -1042,13 +1771,20 @@ public class Server implements ServerInterface {
       if (commitParams == null) {
         throw new IllegalArgumentException("The commitParams need to commit cannot be found.");
       }
-      executeCommit(commitParams);
+      try {
+        executeCommit(transactionID, commitParams);
+      } catch (IOException e) {
+        // committed by the peers but not here, catch up like a peer that missed it
+        serverLogger.log(serverName, "Commit failure: " + e.getMessage());
+        reportDownPeers(Collections.singletonList(currPort));
+      }
     }
     // clean up all temp data and state
     tempStorage.remove(transactionID);
     prepareResponseMap.remove(transactionID);
+    preparedPeers.remove(transactionID);
     commitResponseMap.remove(transactionID);
-    setServerStatus(currPort, 0);
+    lockTable.release(transactionID);
   }
 
   /**
@@ -1060,14 +1796,26 @@ public class Server implements ServerInterface {
   @Override
   public boolean receiveCommit(UUID transactionID) {
     serverLogger.log(serverName, "Commit: received");
-    CommitParams commitParams = tempStorage.get(transactionID);
+    // claimed atomically, the lease of the transaction may be expiring at the same time
+    CommitParams commitParams = tempStorage.remove(transactionID);
     if (commitParams == null) {
-      throw new IllegalArgumentException("The commitParams need to commit cannot be found.");
+      // voted abort, or answered the prepare too late and the lease expired: the commit is missed
+      serverLogger.log(serverName, "Commit: unknown transaction " + transactionID);
+      return false;
+    }
+    try {
+      executeCommit(transactionID, commitParams);
+      return true;
+    } catch (IOException e) {
+      // not applied, the coordinator reports the commit as missed
+      serverLogger.log(serverName, "Commit failure: " + e.getMessage());
+      if (commitParams.getUploadPath() != null) {
+        new File(DATA_DIR + commitParams.getUploadPath()).delete();
+      }
+      return false;
+    } finally {
+      lockTable.release(transactionID);
     }
-    executeCommit(commitParams);
-    tempStorage.remove(transactionID);
-    setServerStatus(currPort, 0);
-    return true;
   }
 
   /**
@@ -1079,125 +1827,277 @@ public class Server implements ServerInterface {
   @Override
   public boolean receiveAbort(UUID transactionID) {
     serverLogger.log(serverName, "Abort: received");
-    tempStorage.remove(transactionID);
-    setServerStatus(currPort, 0);
+    abortLocally(transactionID);
     return true;
   }
 
+  /**
+   * Drop a prepared transaction: its temp data, its upload and its locks
+   *
+   * @param transactionID transaction id
+   * @return true if the transaction was still prepared
+   */
+  private boolean abortLocally(UUID transactionID) {
+    CommitParams commitParams = tempStorage.remove(transactionID);
+    if (commitParams != null && commitParams.getUploadPath() != null) {
+      new File(DATA_DIR + commitParams.getUploadPath()).delete();
+    }
+    lockTable.release(transactionID);
+    return commitParams != null;
+  }
+
+  /**
+   * Abort the prepared transactions whose decision never arrived. The decision may have been a
+   * commit, so the server reports itself to the central server to catch up.
+   */
+  private void expireLeases() {
+    boolean expired = false;
+    for (UUID transactionID : lockTable.getExpiredLeases(System.currentTimeMillis())) {
+      if (abortLocally(transactionID)) {
+        serverLogger.log(serverName, "Abort: lease expired for " + transactionID);
+        expired = true;
+      }
+    }
+    if (expired) reportMissedAck(currPort);
+  }
+
+  /**
+   * Get the time a coordinator waits for the prepare answers: peers download the uploaded section
+   * before they answer
+   *
+   * @param commitParams commit parameters
+   * @return timeout in ms
+   */
+  private long getPrepareTimeoutMs(CommitParams commitParams) {
+    return peerTimeoutMs + commitParams.getUploadSize() / MIN_UPLOAD_BYTES_PER_MS;
+  }
+
+  /**
+   * Get the time a prepared participant waits for the decision before it aborts
+   *
+   * @param commitParams commit parameters
+   * @return lease in ms
+   */
+  private long getLeaseMs(CommitParams commitParams) {
+    return 2 * (getPrepareTimeoutMs(commitParams) + peerTimeoutMs);
+  }
+
   /**
    * Participant method for 2PC Receive execute commit() request from coordinator. The requests
-   * include: CREATE_USER /LOGIN /LOGOUT EDIT/ SHARE /CREATE_DOCUMENT /EDIT_END GET_NOTIFICATIONS
+   * include: CREATE_USER /LOGIN /LOGOUT EDIT/ SHARE /CREATE_DOCUMENT /EDIT_END GET_NOTIFICATIONS.
+   * Mutations of the user and document databases are appended to the commit log before they are
+   * applied, a mutation that cannot be logged is not applied.
    *
    * @param commitParams
-   * @return
+   * @throws RemoteException if the commit log cannot be written
    */
   @Override
-  public void executeCommit(CommitParams commitParams) {
+  public void executeCommit(CommitParams commitParams) throws RemoteException {
+    try {
+      executeCommit(null, commitParams);
+    } catch (IOException e) {
+      throw new RemoteException("Commit failure", e);
+    }
+  }
+
+  /**
+   * Apply a committed transaction once: it may arrive both from its coordinator and from the
+   * catch-up of a missed commit
+   *
+   * @param transactionID transaction id, null if unknown
+   * @param commitParams  commit parameters
+   * @return false if the transaction was already applied
+   * @throws IOException if the commit log or the section cannot be written, the mutation is then
+   *                     not applied
+   */
+  private boolean executeCommit(UUID transactionID, CommitParams commitParams) throws IOException {
+    checkpointLock.readLock().lock();
+    try {
+      if (transactionID != null && !transactionLog.add(transactionID, commitParams)) {
+        if (commitParams.getUploadPath() != null) {
+          new File(DATA_DIR + commitParams.getUploadPath()).delete();
+        }
+        return false;
+      }
+      try {
+        // a logged EDIT_END always describes content already stored, replaying it only bumps versions
+        if (commitParams.getCommitEnum() == CommitEnum.EDIT_END) storeEditedSection(commitParams);
+        if (WriteAheadLog.isLogged(commitParams.getCommitEnum())) {
+          writeAheadLog.append(commitParams);
+        }
+        applyCommit(commitParams);
+      } catch (IOException e) {
+        // not applied, a catch-up replays it
+        if (transactionID != null) transactionLog.remove(transactionID);
+        throw e;
+      }
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+
+    if (writeAheadLog.getRecordCount() >= CHECKPOINT_INTERVAL && checkpointing.compareAndSet(false, true)) {
+      try {
+        checkpoint();
+      } finally {
+        checkpointing.set(false);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Apply a committed mutation to the in memory databases and section files. The content of an
+   * edited section is stored beforehand, see storeEditedSection.
+   *
+   * @param commitParams
+   * @throws IOException if the sections of a new document cannot be stored
+   */
+  private void applyCommit(CommitParams commitParams) throws IOException {
+    String docName = commitParams.getDocName();
+    int sectionNum = commitParams.getSectionNum();
     switch (commitParams.getCommitEnum()) {
       case CREATE_USER:
-        this.userDatabase = commitParams.getUserDatabase();
+        // add the new user with its encrypted password
+        userDatabase.addUser(commitParams.getUser());
         break;
       case LOGIN:
+        // register the session with the coordinator generated token
+        aliveUserDatabase.login(commitParams.getUser(), commitParams.getToken());
+        break;
       case LOGOUT:
-        this.aliveUserDatabase = commitParams.getAliveUserDatabase();
+        aliveUserDatabase.logout(commitParams.getUser());
         break;
       case EDIT:
-        // set occupant
-        String docName = commitParams.getDocName();
-        int sectionNum = commitParams.getSectionNum();
-        this.documentDatabase.getDocumentByName(docName).
-                getSectionByIndex(sectionNum).occupy(commitParams.getUser());
-        this.chatManager = commitParams.getChatManager();
+        // set occupant and open the chat of the document
+        Document doc = documentDatabase.getDocumentByName(docName);
+        // sections of a document are locked separately, keep occupancy and chat consistent
+        synchronized (doc) {
+          doc.getSectionByIndex(sectionNum).occupy(commitParams.getUser());
+          chatManager.getChatDatabase().put(docName, commitParams.getMulticastAddress());
+        }
         break;
       case SHARE:
-        // add author
-        this.documentDatabase.getDocumentByName(commitParams.getDocName()).
-                addAuthor(new User(commitParams.getTargetUser()));
-        this.userDatabase = commitParams.getUserDatabase();
+        // add author and notify the target user
+        shareDocument(commitParams);
+        notifySharedUser(commitParams);
         break;
       case CREATE_DOCUMENT:
-        this.documentDatabase.createNewDocument(DATA_DIR,
-                commitParams.getSectionNum(),
-                commitParams.getDocName(),
+        // the sections are stored first, a document never exists without them. If they cannot be
+        // stored the commit fails on this replica, which then catches up.
+        sectionStore.create(Document.create(commitParams.getUser(), "", sectionNum, docName));
+        // section paths are relative, the section store decides where the contents live
+        documentDatabase.createNewDocument("",
+                sectionNum,
+                docName,
                 commitParams.getUser());
+        operationLog.append(commitParams, 0);
         break;
       case EDIT_END:
-        // set occupant to null
-        docName = commitParams.getDocName();
-        sectionNum = commitParams.getSectionNum();
-        this.documentDatabase.getDocumentByName(docName).
-                getSectionByIndex(sectionNum).occupy(null);
-
-        OutputStream fileStream = null;
-        try {
-          Section editingSection = documentDatabase.
-                  getDocumentByName(commitParams.getDocName()).
-                  getSectionByIndex(commitParams.getSectionNum());
-          fileStream = this.getWriteStream(editingSection.getPath());
-
-          byte[] bytes = commitParams.getBytes();
-          String str = new String(bytes, StandardCharsets.UTF_8);
-//          System.out.println("content: " + str);
-          fileStream.write(bytes);
-        } catch (IOException e) {
-          e.printStackTrace();
-          serverLogger.log(serverName, e.getMessage());
-        }
-        if (fileStream != null) {
-          try {
-            fileStream.close();
-          } catch (IOException ex) {
-            ex.printStackTrace();
-            serverLogger.log(serverName, ex.getMessage());
+        // the new content is stored by executeCommit, see storeEditedSection
+        doc = documentDatabase.getDocumentByName(docName);
+        Section editingSection = doc.getSectionByIndex(sectionNum);
+        synchronized (doc) {
+          // set occupant to null and close the chat once nobody is editing the document
+          editingSection.occupy(null);
+          if (doc.getOccupiedSections().size() == 0) {
+            chatManager.remove(docName);
           }
-        }
-
-        Document doc = documentDatabase.getDocumentByName(commitParams.getDocName());
-        if (doc.getOccupiedSections().size() == 0) {
-          chatManager = commitParams.getChatManager();
+          editingSection.setVersion(editingSection.getVersion() + 1);
+          doc.setVersion(doc.getVersion() + 1);
+          operationLog.append(commitParams, editingSection.getVersion());
         }
         break;
       case GET_NOTIFICATIONS:
-        userDatabase = commitParams.getUserDatabase();
+        User notifiedUser = userDatabase.getUserByUsername(commitParams.getUser().getUsername());
+        if (notifiedUser == null) break;
+        if (commitParams.getDeliveredNotifications() != null) {
+          notifiedUser.removeNotifications(commitParams.getDeliveredNotifications());
+        } else {
+          // logged before the delivered notifications were recorded
+          notifiedUser.getNotifications().clear();
+        }
         break;
     }
   }
 
-  public OutputStream getWriteStream(String path) throws IOException {
-    FileChannel fileChannel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-    return Channels.newOutputStream(fileChannel);
+  /**
+   * EDIT_END: replace the section with the spooled upload atomically. Readers that already opened
+   * the section keep reading the previous content, new readers see the whole new content. Without
+   * the content the version is not bumped, catch-up would trust it.
+   *
+   * @param commitParams
+   * @throws IOException if the new content cannot be stored, the upload is then deleted
+   */
+  private void storeEditedSection(CommitParams commitParams) throws IOException {
+    Document doc = documentDatabase.getDocumentByName(commitParams.getDocName());
+    try {
+      sectionStore.replace(doc, commitParams.getSectionNum(), Paths.get(DATA_DIR + commitParams.getUploadPath()));
+    } catch (IOException e) {
+      new File(DATA_DIR + commitParams.getUploadPath()).delete();
+      throw e;
+    }
+  }
+
+  /**
+   * SHARE on the document database: add the target user as author
+   *
+   * @param commitParams
+   */
+  private void shareDocument(CommitParams commitParams) {
+    documentDatabase.shareDocument(commitParams.getDocName(), new User(commitParams.getTargetUser()));
+    Document doc = documentDatabase.getDocumentByName(commitParams.getDocName());
+    synchronized (doc) {
+      doc.setVersion(doc.getVersion() + 1);
+    }
+    operationLog.append(commitParams, 0);
   }
 
   /**
-   * get server status from central server
+   * SHARE on the user database: notify the target user
    *
-   * @param port
-   * @return 0 -> empty, 1 -> busy, 2 -> dead, -1 -> Not found
+   * @param commitParams
    */
-  private int getServerStatus(int port) {
+  private void notifySharedUser(CommitParams commitParams) {
+    User sharedUser = userDatabase.getUserByUsername(commitParams.getTargetUser());
+    if (sharedUser != null) {
+      sharedUser.pushNewNotification(commitParams.getDocName());
+    }
+  }
+
+  /**
+   * Report a peer that missed an ack to the central server, whose failure detector decides whether
+   * it is dead
+   *
+   * @param port port# of the peer
+   */
+  private void reportMissedAck(int port) {
     try {
-      Registry registry = LocateRegistry.getRegistry(centralPort);
-      CentralServerInterface stub = (CentralServerInterface) registry.lookup(CentralServer.class.getSimpleName() + centralPort);
-      return stub.getServerStatus(port);
+      stubCache.callCentral(centralPort, stub -> {
+        stub.reportMissedAck(port);
+        return null;
+      });
     } catch (Exception e) {
       serverLogger.log(serverName, "Exception: " + e.getMessage());
-      return -1;
     }
   }
 
   /**
-   * Set server status through the central server
-   *
-   * @param port   port# if the server to set
-   * @param status 0 -> empty, 1 -> busy, 2 -> dead, -1 -> Not found
+   * Report the current load to the central server, and refresh the cluster view and the peers if
+   * the epoch changed
    */
-  private void setServerStatus(int port, int status) {
+  private void sendHeartbeat() {
+    // users that logged out through another server or whose session was replaced by a recovery
+    loadTracker.retainSessions(aliveUserDatabase::isLoggedIn);
+    ServerLoad load = loadTracker.getLoad();
     try {
-      Registry registry = LocateRegistry.getRegistry(centralPort);
-      CentralServerInterface stub = (CentralServerInterface) registry.lookup(CentralServer.class.getSimpleName() + centralPort);
-      stub.setServerStatus(port, status);
+      long epoch = stubCache.callCentral(centralPort, stub -> stub.reportLoad(currPort, load));
+      ClusterView knownView = clusterView;
+      long knownEpoch = knownView == null ? -1 : knownView.getEpoch();
+      if (epoch == knownEpoch) return;
+      ClusterView view = stubCache.callCentral(centralPort, stub -> stub.getClusterViewSince(knownEpoch));
+      if (view != null) updateClusterView(view);
     } catch (Exception e) {
-      serverLogger.log(serverName, "Exception: " + e.getMessage());
+      // the central server may not be bound yet, the next heartbeat retries
     }
   }
 
@@ -1208,29 +2108,104 @@ public class Server implements ServerInterface {
    * @return list of all server ports except for the curr server
    */
   private int[] getPeers(int currPort) {
+    int[] knownPeers = peers;
+    if (knownPeers != null) return knownPeers;
     try {
-      Registry registry = LocateRegistry.getRegistry(centralPort);
-      CentralServerInterface stub = (CentralServerInterface) registry.lookup(CentralServer.class.getSimpleName() + centralPort);
-      return stub.getPeers(currPort);
+      // nothing pushed by the central server yet, fetch and cache the cluster view once
+      updateClusterView(stubCache.callCentral(centralPort, CentralServerInterface::getClusterView));
+      knownPeers = peers;
+      return knownPeers == null ? new int[0] : knownPeers;
     } catch (Exception e) {
       serverLogger.log(serverName, "Exception: " + e.getMessage());
-      return null;
+      return new int[0];
     }
   }
 
   /**
-   * send message to central server
+   * Receive the up-to-date cluster view pushed by the central server: the peers, where they are, and
+   * whether this server is still a member
+   *
+   * @param view cluster view
+   */
+  @Override
+  public synchronized void updateClusterView(ClusterView view) {
+    // pushed by the central server and refreshed by the heartbeat, usually both
+    ClusterView knownView = clusterView;
+    if (knownView != null && view.getEpoch() <= knownView.getEpoch()) return;
+    clusterView = view;
+    for (int port : view.getPorts()) {
+      stubCache.setHost(port, view.getHost(port));
+    }
+    int[] viewPeers = view.getPeers(currPort);
+    if (Arrays.equals(peers, viewPeers)) return;
+    peers = viewPeers;
+    serverLogger.log(serverName, "Peers updated: " + Arrays.toString(viewPeers)
+            + (view.isMember(currPort) ? "" : ", not a member of the cluster"));
+  }
+
+  /**
+   * Whether a transaction is coordinated by a member of the cluster, with a membership at least as
+   * recent as the one known here. Fences the servers removed from the cluster.
+   *
+   * @param commitParams commit parameters
+   * @return true if the coordinator may prepare the transaction
+   */
+  private boolean isCoordinatedByMember(CommitParams commitParams) {
+    ClusterView view = clusterView;
+    // no membership known yet
+    if (view == null) return true;
+    return commitParams.getMembershipEpoch() >= view.getMembershipEpoch() && view.isMember(commitParams.getCoordinatorPort());
+  }
+
+  /**
+   * Report peers that missed an ack to the central server: they may have missed the commit and must
+   * catch up. Runs asynchronously so that the commit path never waits on the central server.
    *
-   * @param message
+   * @param downPeers port# of the peers that did not answer
    */
-  private void sendMessageToCentral(String message) {
+  private void reportDownPeers(List<Integer> downPeers) {
+    if (downPeers.isEmpty()) return;
+    reportExecutor.execute(() -> {
+      for (int peerPort : downPeers) {
+        reportMissedAck(peerPort);
+      }
+    });
+  }
+
+
+  /**
+   * Run the given peer RPCs concurrently and wait until the last of them completes or the phase
+   * timeout expires, whichever comes first. Calls still running after the timeout, or that the
+   * saturated pool rejected, count as missing acks; the calls themselves time out on their own
+   * socket read timeout.
+   *
+   * @param calls peer RPCs of one 2PC phase
+   */
+  private void invokePeers(List<Runnable> calls, long timeoutMs) {
+    if (calls.isEmpty()) return;
+    CountDownLatch latch = new CountDownLatch(calls.size());
+    for (Runnable call : calls) {
+      try {
+        peerExecutor.execute(() -> {
+          try {
+            call.run();
+          } finally {
+            latch.countDown();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // never run a peer RPC on the coordinator thread, it would bypass the phase timeout
+        serverLogger.log(serverName, "Too many peer calls in flight, one counts as a missing ack");
+        latch.countDown();
+      }
+    }
     try {
-      Registry registry = LocateRegistry.getRegistry(centralPort);
-      CentralServerInterface stub = (CentralServerInterface) registry.lookup(CentralServer.class.getSimpleName() + centralPort);
-      stub.receiveNotification(message);
-    } catch (Exception e) {
-      e.printStackTrace();
-//      serverLogger.log(serverName, "Exception: " + e.getMessage());
+      if (!latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+        serverLogger.log(serverName, "Timed out waiting for " + latch.getCount() + " peer ack(s)");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      serverLogger.log(serverName, e.getMessage());
     }
   }
 
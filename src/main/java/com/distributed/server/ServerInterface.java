@@ -1,13 +1,18 @@
 package com.distributed.server;
 
 import com.distributed.model.BackupData;
+import com.distributed.model.ClusterView;
 import com.distributed.model.CommitParams;
 import com.distributed.model.Request;
 import com.distributed.model.Result;
 import com.distributed.model.User;
+import com.healthmarketscience.rmiio.RemoteInputStream;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -61,5 +66,17 @@ public interface ServerInterface extends Remote {
 
   boolean recoverData(BackupData backupData) throws RemoteException;
 
-  boolean helpRecoverData(int targetPort) throws RemoteException;
+  boolean helpRecoverData(String targetHost, int targetPort) throws RemoteException;
+
+  boolean catchUp(int helperPort) throws RemoteException;
+
+  Map<UUID, CommitParams> getMissedTransactions(Set<UUID> knownTransactions) throws RemoteException;
+
+  List<CommitParams> getCatchUpOperations(Map<String, Long> sectionVersions) throws RemoteException;
+
+  List<String> getChangedSections(Map<String, String> sectionDigests) throws RemoteException;
+
+  RemoteInputStream fetchSection(String relativePath, long offset) throws RemoteException;
+
+  void updateClusterView(ClusterView view) throws RemoteException;
 }
@@ -0,0 +1,141 @@
+package com.distributed.server;
+
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * StubCache.java
+ * <p>
+ * Caches the RMI stubs of peer servers and of the central server by port, so that the registry is
+ * only looked up the first time a server is contacted. A stub is dropped as soon as a call through
+ * it fails, and is resolved again on the next call (e.g. after the server restarted and rebound a
+ * new stub). Registries are looked up on the host set for the port, the local host by default.
+ *
+ * @version 2020-4-21
+ */
+public class StubCache {
+  private ConcurrentMap<Integer, Remote> stubs;
+  private ConcurrentMap<Integer, String> hosts;
+
+  /**
+   * Remote call through a cached stub
+   *
+   * @param <S> stub type
+   * @param <T> result type
+   */
+  public interface RemoteCall<S extends Remote, T> {
+    T call(S stub) throws RemoteException;
+  }
+
+  /**
+   * Constructor
+   */
+  StubCache() {
+    stubs = new ConcurrentHashMap<>();
+    hosts = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Sets the host of a server, its cached stub is dropped if the host changed.
+   *
+   * @param port server port#
+   * @param host server host, null for the local host
+   */
+  void setHost(int port, String host) {
+    String previous = host == null ? hosts.remove(port) : hosts.put(port, host);
+    if (!Objects.equals(previous, host)) invalidate(port);
+  }
+
+  /**
+   * Calls a server through its cached stub.
+   *
+   * @param port server port#
+   * @param call remote call
+   * @return result of the call
+   * @throws RemoteException   if the call fails
+   * @throws NotBoundException if the server is not bound in its registry
+   */
+  <T> T callServer(int port, RemoteCall<ServerInterface, T> call) throws RemoteException, NotBoundException {
+    return invoke(port, Server.class.getSimpleName() + port, call);
+  }
+
+  /**
+   * Calls a server through its cached stub, and fails the call if the server does not answer in
+   * time, see {@link PeerSocketFactory}.
+   *
+   * @param port      server port#
+   * @param timeoutMs read timeout of the call in ms
+   * @param call      remote call
+   * @return result of the call
+   * @throws RemoteException   if the call fails or times out
+   * @throws NotBoundException if the server is not bound in its registry
+   */
+  <T> T callServer(int port, long timeoutMs, RemoteCall<ServerInterface, T> call) throws RemoteException, NotBoundException {
+    PeerSocketFactory.setReadTimeout(timeoutMs);
+    try {
+      return callServer(port, call);
+    } finally {
+      PeerSocketFactory.clearReadTimeout();
+    }
+  }
+
+  /**
+   * Calls the central server through its cached stub.
+   *
+   * @param port central server port#
+   * @param call remote call
+   * @return result of the call
+   * @throws RemoteException   if the call fails
+   * @throws NotBoundException if the central server is not bound in its registry
+   */
+  <T> T callCentral(int port, RemoteCall<CentralServerInterface, T> call) throws RemoteException, NotBoundException {
+    return invoke(port, CentralServer.class.getSimpleName() + port, call);
+  }
+
+  /**
+   * Drops the cached stub of a port.
+   *
+   * @param port server port#
+   */
+  void invalidate(int port) {
+    stubs.remove(port);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <S extends Remote, T> T invoke(int port, String name, RemoteCall<S, T> call) throws RemoteException, NotBoundException {
+    S stub = (S) lookup(port, name);
+    try {
+      return call.call(stub);
+    } catch (NoSuchObjectException | ConnectException e) {
+      // the call never reached the server: the stub is stale, resolve it again and retry once
+      invalidate(port);
+      try {
+        return call.call((S) lookup(port, name));
+      } catch (RemoteException ex) {
+        invalidate(port);
+        throw ex;
+      }
+    } catch (RemoteException e) {
+      invalidate(port);
+      throw e;
+    }
+  }
+
+  private Remote lookup(int port, String name) throws RemoteException, NotBoundException {
+    Remote stub = stubs.get(port);
+    if (stub == null) {
+      Registry registry = LocateRegistry.getRegistry(hosts.get(port), port);
+      stub = registry.lookup(name);
+      stubs.put(port, stub);
+    }
+    return stub;
+  }
+}
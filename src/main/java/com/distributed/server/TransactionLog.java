@@ -0,0 +1,109 @@
+package com.distributed.server;
+
+import com.distributed.model.CommitParams;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * TransactionLog.java
+ * <p>
+ * Implements a bounded in-memory log of the recently committed transactions, by transaction id in
+ * commit order. A commit may reach a server both from its coordinator and from the catch-up of a
+ * missed commit, the log makes sure it is applied once. A server that missed commits asks a peer for
+ * the transactions it does not know instead of receiving a full state transfer.
+ *
+ * @version 2020-4-21
+ */
+public class TransactionLog {
+  private final int capacity;
+  private final LinkedHashMap<UUID, CommitParams> transactions;
+
+  /**
+   * Constructor
+   *
+   * @param capacity max number of transactions kept
+   */
+  TransactionLog(int capacity) {
+    this.capacity = capacity;
+    this.transactions = new LinkedHashMap<>();
+  }
+
+  /**
+   * Adds a committed transaction unless it was already added.
+   *
+   * @param transactionID transaction id
+   * @param commitParams  committed operation
+   * @return false if the transaction is already in the log
+   */
+  synchronized boolean add(UUID transactionID, CommitParams commitParams) {
+    if (transactions.containsKey(transactionID)) return false;
+    if (transactions.size() == capacity) {
+      Iterator<UUID> oldest = transactions.keySet().iterator();
+      oldest.next();
+      oldest.remove();
+    }
+    transactions.put(transactionID, commitParams);
+    return true;
+  }
+
+  /**
+   * Removes a transaction that could not be applied, so that a catch-up replays it.
+   *
+   * @param transactionID transaction id
+   */
+  synchronized void remove(UUID transactionID) {
+    transactions.remove(transactionID);
+  }
+
+  /**
+   * Gets the ids of the logged transactions.
+   *
+   * @return copy of the transaction ids
+   */
+  synchronized Set<UUID> getTransactionIDs() {
+    return new HashSet<>(transactions.keySet());
+  }
+
+  /**
+   * Gets the logged transactions in commit order.
+   *
+   * @return copy of the logged transactions
+   */
+  synchronized LinkedHashMap<UUID, CommitParams> getTransactions() {
+    return new LinkedHashMap<>(transactions);
+  }
+
+  /**
+   * Replaces the log with the one of the server the databases were recovered from.
+   *
+   * @param recoveredTransactions transactions committed by that server in commit order
+   */
+  synchronized void replace(Map<UUID, CommitParams> recoveredTransactions) {
+    transactions.clear();
+    transactions.putAll(recoveredTransactions);
+  }
+
+  /**
+   * Gets the logged transactions another server does not know.
+   *
+   * @param knownTransactions ids of the transactions committed by the other server
+   * @return missed transactions in commit order, or null if some of them may already have been
+   * dropped from the log
+   */
+  synchronized LinkedHashMap<UUID, CommitParams> getMissed(Set<UUID> knownTransactions) {
+    // a full log dropped older transactions: they are covered only if the other server knows the oldest one kept
+    if (transactions.size() == capacity && !knownTransactions.contains(transactions.keySet().iterator().next())) {
+      return null;
+    }
+    LinkedHashMap<UUID, CommitParams> missed = new LinkedHashMap<>();
+    transactions.forEach((transactionID, commitParams) -> {
+      if (!knownTransactions.contains(transactionID)) missed.put(transactionID, commitParams);
+    });
+    return missed;
+  }
+}
@@ -0,0 +1,196 @@
+package com.distributed.server;
+
+import com.distributed.model.Result;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransferServer.java
+ * <p>
+ * Implements the side channel used to download sections. An RMI call opens the requested sections
+ * and hands a one-time ticket back to the client, which then connects to this socket, sends the
+ * ticket and receives the content. Buffers are written as they are and files through
+ * FileChannel.transferTo, so the bytes never go through the Java heap of the server. Sections are
+ * opened when the ticket is issued: a section replaced in the meantime is still sent with the content
+ * it had at that time.
+ *
+ * @version 2020-4-21
+ */
+public class TransferServer {
+  // tickets not claimed within this delay are dropped
+  private static final long TICKET_TTL_MS = 60000;
+  private static final long EXPIRY_CHECK_MS = 5000;
+  // a connection that does not send its ticket within this delay is closed
+  private static final int TICKET_READ_TIMEOUT_MS = 5000;
+  private static final int TRANSFER_THREADS = 4;
+  private final String serverName;
+  private final ServerLogger serverLogger;
+  private final String host;
+  private final ServerSocketChannel serverChannel;
+  private final ExecutorService transferExecutor;
+  private final ScheduledExecutorService expiryExecutor;
+  private final ConcurrentMap<String, Transfer> transfers;
+
+  /**
+   * Sections to send for one ticket
+   */
+  private static class Transfer {
+    private final List<SectionContent> contents;
+    // written after each section, may be null
+    private final byte[] separator;
+    private final long createdAt;
+
+    private Transfer(List<SectionContent> contents, byte[] separator) {
+      this.contents = contents;
+      this.separator = separator;
+      this.createdAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+      for (SectionContent content : contents) {
+        content.close();
+      }
+    }
+  }
+
+  /**
+   * Opens the transfer socket on an ephemeral port and starts accepting downloads.
+   *
+   * @param serverName   name of the owning server, used in logs and thread names
+   * @param serverLogger logger
+   * @throws IOException if the socket cannot be opened
+   */
+  TransferServer(String serverName, ServerLogger serverLogger) throws IOException {
+    this.serverName = serverName;
+    this.serverLogger = serverLogger;
+    this.host = System.getProperty("java.rmi.server.hostname", InetAddress.getLocalHost().getHostAddress());
+    this.transfers = new ConcurrentHashMap<>();
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(0));
+    this.transferExecutor = Executors.newFixedThreadPool(TRANSFER_THREADS, runnable -> {
+      Thread thread = new Thread(runnable, serverName + "-transfer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // unclaimed tickets hold open contents, they are dropped even if no download comes
+    this.expiryExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, serverName + "-transfer-expiry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.expiryExecutor.scheduleWithFixedDelay(this::expireTransfers, EXPIRY_CHECK_MS, EXPIRY_CHECK_MS, TimeUnit.MILLISECONDS);
+    Thread acceptThread = new Thread(this::accept, serverName + "-transfer-accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+  }
+
+  /**
+   * Attaches a download ticket for the content of the sections to the result. The contents are
+   * closed once sent, if the ticket expires or if their size cannot be read.
+   *
+   * @param result    result returned to the client
+   * @param contents  contents of the sections to send, in order
+   * @param separator bytes sent after each section, or null
+   * @throws IOException if the size of a section cannot be read
+   */
+  void attach(Result result, List<SectionContent> contents, byte[] separator) throws IOException {
+    long size = 0;
+    try {
+      for (SectionContent content : contents) {
+        size += content.size() + (separator == null ? 0 : separator.length);
+      }
+    } catch (IOException e) {
+      for (SectionContent content : contents) content.close();
+      throw e;
+    }
+    String ticket = UUID.randomUUID().toString();
+    transfers.put(ticket, new Transfer(contents, separator));
+    result.setTransferHost(host);
+    result.setTransferPort(serverChannel.socket().getLocalPort());
+    result.setTransferTicket(ticket);
+    result.setTransferSize(size);
+  }
+
+  /**
+   * Stops accepting downloads and drops the unclaimed tickets.
+   */
+  void close() {
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      serverLogger.log(serverName, e.getMessage());
+    }
+    transferExecutor.shutdown();
+    expiryExecutor.shutdown();
+    for (String ticket : transfers.keySet()) {
+      Transfer transfer = transfers.remove(ticket);
+      if (transfer != null) transfer.close();
+    }
+  }
+
+  private void accept() {
+    while (serverChannel.isOpen()) {
+      try {
+        SocketChannel socketChannel = serverChannel.accept();
+        transferExecutor.execute(() -> send(socketChannel));
+      } catch (IOException e) {
+        if (serverChannel.isOpen()) serverLogger.log(serverName, "Transfer: " + e.getMessage());
+      }
+    }
+  }
+
+  private void send(SocketChannel socketChannel) {
+    Transfer transfer = null;
+    try {
+      // the socket stream honors the read timeout, a stream over the channel would not
+      socketChannel.socket().setSoTimeout(TICKET_READ_TIMEOUT_MS);
+      String ticket = new DataInputStream(socketChannel.socket().getInputStream()).readUTF();
+      transfer = transfers.remove(ticket);
+      if (transfer == null) {
+        serverLogger.log(serverName, "Transfer: unknown or expired ticket");
+        return;
+      }
+      for (SectionContent content : transfer.contents) {
+        content.sendTo(socketChannel);
+        if (transfer.separator != null) {
+          ByteBuffer separator = ByteBuffer.wrap(transfer.separator);
+          while (separator.hasRemaining()) {
+            socketChannel.write(separator);
+          }
+        }
+      }
+    } catch (IOException e) {
+      serverLogger.log(serverName, "Transfer: " + e.getMessage());
+    } finally {
+      if (transfer != null) transfer.close();
+      try {
+        socketChannel.close();
+      } catch (IOException e) {
+        serverLogger.log(serverName, e.getMessage());
+      }
+    }
+  }
+
+  private void expireTransfers() {
+    long now = System.currentTimeMillis();
+    transfers.entrySet().removeIf(entry -> {
+      if (now - entry.getValue().createdAt < TICKET_TTL_MS) return false;
+      entry.getValue().close();
+      return true;
+    });
+  }
+}
@@ -2,28 +2,39 @@ package com.distributed.server;
 
 import com.distributed.model.User;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * UserDatabase.java Implements data structure and methods for users. Uses ReadWriteLock when
- * updating database.
+ * UserDatabase.java Implements data structure and methods for users. Users are indexed by username
+ * in a concurrent hash map, the serialized form is still the original user list so that existing
+ * UserDB.dat files keep loading.
  *
  * @version 2020-4-21
  */
 public class UserDatabase implements Serializable {
   private static final long serialVersionUID = 1L;
-  private List<User> users;
-  private ReentrantReadWriteLock mutex;
+  // serialized form of the original list based database
+  private static final ObjectStreamField[] serialPersistentFields = {
+          new ObjectStreamField("users", List.class),
+          new ObjectStreamField("mutex", ReentrantReadWriteLock.class)
+  };
+  private transient ConcurrentMap<String, User> users;
 
   /**
    * Initializes user database
    */
   UserDatabase() {
-    users = new ArrayList<>();
-    mutex = new ReentrantReadWriteLock();
+    users = new ConcurrentHashMap<>();
   }
 
   /**
@@ -58,10 +69,20 @@ public class UserDatabase implements Serializable {
   User addNewUser(String username, String password) {
     if (!isUsernameAvailable(username)) return null;
     User newUser = new User(username, password);
-    mutex.writeLock().lock();
-    users.add(newUser);
-    mutex.writeLock().unlock();
-    return newUser;
+    return users.putIfAbsent(username, newUser) == null ? newUser : null;
+  }
+
+  /**
+   * Stores a replicated user whose password is already encrypted, so that every replica keeps the
+   * same credentials as the coordinator.
+   *
+   * @param user user reference carrying the encrypted password
+   * @return the stored user reference or null if that username is not available
+   */
+  User addUser(User user) {
+    User newUser = new User(user.getUsername());
+    newUser.setPassword(user.getPassword());
+    return users.putIfAbsent(newUser.getUsername(), newUser) == null ? newUser : null;
   }
 
   /**
@@ -81,15 +102,51 @@ public class UserDatabase implements Serializable {
    * @return related user's object if exists, null otherwise
    */
   User getUserByUsername(String username) {
-    mutex.readLock().lock();
-    for (User user : users) {
-      if (user.getUsername().compareTo(username) == 0) {
-        mutex.readLock().unlock();
-        return user;
+    if (username == null) return null;
+    return users.get(username);
+  }
+
+  /**
+   * Gets all the users.
+   *
+   * @return user references
+   */
+  Collection<User> getUsers() {
+    return users.values();
+  }
+
+  /**
+   * Stores a user loaded from a snapshot as it is, notifications included.
+   *
+   * @param user user reference
+   */
+  void restoreUser(User user) {
+    users.put(user.getUsername(), user);
+  }
+
+  /**
+   * Writes the users as the original list based form.
+   */
+  private void writeObject(ObjectOutputStream output) throws IOException {
+    ObjectOutputStream.PutField fields = output.putFields();
+    fields.put("users", new ArrayList<>(users.values()));
+    fields.put("mutex", new ReentrantReadWriteLock());
+    output.writeFields();
+  }
+
+  /**
+   * Reads the original list based form and rebuilds the username index.
+   */
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = input.readFields();
+    List<User> storedUsers = (List<User>) fields.get("users", null);
+    users = new ConcurrentHashMap<>();
+    if (storedUsers != null) {
+      for (User user : storedUsers) {
+        users.putIfAbsent(user.getUsername(), user);
       }
     }
-    mutex.readLock().unlock();
-    return null;
   }
 
 }
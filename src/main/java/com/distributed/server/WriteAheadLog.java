@@ -0,0 +1,295 @@
+package com.distributed.server;
+
+import com.distributed.model.CommitEnum;
+import com.distributed.model.CommitParams;
+import com.distributed.model.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog.java
+ * <p>
+ * Implements an append-only log of the committed mutations of the user and document databases.
+ * Each record is framed as [length][crc32][payload]. Appends use group commit: the first thread
+ * waiting for durability writes and fsyncs every record buffered so far, so concurrent
+ * transactions share a single fsync. Every record carries its log position, which keeps growing
+ * across truncates: a snapshot tagged with the last position it covers tells which records to skip
+ * on replay. A failed write or fsync fails every later append until the log is truncated, since the
+ * state of the file is then unknown.
+ *
+ * @version 2020-4-21
+ */
+public class WriteAheadLog {
+  private final Path path;
+  private FileChannel channel;
+  // records appended but not written to the channel yet
+  private ByteArrayOutputStream buffer;
+  private long appendedCount;
+  private volatile long durableCount;
+  private final Object flushLock = new Object();
+  // records in the log since the last truncate
+  private volatile long recordCount;
+  // position of the last appended record
+  private long lastPosition;
+  private volatile boolean failed;
+
+  /**
+   * A logged mutation and its position in the log
+   */
+  static class Record {
+    final long position;
+    final CommitParams commitParams;
+
+    Record(long position, CommitParams commitParams) {
+      this.position = position;
+      this.commitParams = commitParams;
+    }
+  }
+
+  /**
+   * Opens (or creates) the log file.
+   *
+   * @param path log file path
+   * @throws IOException if an I/O error occurs
+   */
+  WriteAheadLog(String path) throws IOException {
+    this.path = Paths.get(path);
+    this.buffer = new ByteArrayOutputStream();
+    this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    this.channel.position(this.channel.size());
+  }
+
+  /**
+   * Whether the mutation changes the persisted user or document database, e.g. the section and
+   * document versions bumped by EDIT_END.
+   *
+   * @param commitEnum commit type
+   * @return true if it needs to be logged
+   */
+  static boolean isLogged(CommitEnum commitEnum) {
+    switch (commitEnum) {
+      case CREATE_USER:
+      case CREATE_DOCUMENT:
+      case SHARE:
+      case EDIT_END:
+      case GET_NOTIFICATIONS:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Appends a mutation and returns once it is durable on disk.
+   *
+   * @param commitParams committed mutation
+   * @throws IOException if an I/O error occurs
+   */
+  void append(CommitParams commitParams) throws IOException {
+    if (failed) throw new IOException("Commit log failed, waiting for a checkpoint");
+    long sequence;
+    synchronized (this) {
+      buffer.write(frame(encode(commitParams, ++lastPosition)));
+      sequence = ++appendedCount;
+    }
+    synchronized (flushLock) {
+      // the flush that took this record may have failed
+      if (failed) throw new IOException("Commit log failed, waiting for a checkpoint");
+      // a previous flush already covered this record
+      if (durableCount >= sequence) return;
+      byte[] pending;
+      long flushedCount;
+      synchronized (this) {
+        pending = buffer.toByteArray();
+        buffer.reset();
+        flushedCount = appendedCount;
+      }
+      try {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(pending);
+        while (byteBuffer.hasRemaining()) {
+          channel.write(byteBuffer);
+        }
+        channel.force(false);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+      recordCount += flushedCount - durableCount;
+      durableCount = flushedCount;
+    }
+  }
+
+  /**
+   * Reads all the complete records of the log. A torn or corrupted tail left by a crash is cut off.
+   *
+   * @return logged mutations in commit order
+   * @throws IOException if an I/O error occurs
+   */
+  List<Record> readAll() throws IOException {
+    List<Record> records = new ArrayList<>();
+    synchronized (flushLock) {
+      byte[] content = Files.readAllBytes(path);
+      ByteBuffer byteBuffer = ByteBuffer.wrap(content);
+      long validLength = 0;
+      while (byteBuffer.remaining() >= 8) {
+        int length = byteBuffer.getInt();
+        int checksum = byteBuffer.getInt();
+        if (length < 0 || length > byteBuffer.remaining()) break;
+        byte[] payload = new byte[length];
+        byteBuffer.get(payload);
+        if (checksum != checksum(payload)) break;
+        Record record = decode(payload);
+        records.add(record);
+        synchronized (this) {
+          lastPosition = Math.max(lastPosition, record.position);
+        }
+        validLength = byteBuffer.position();
+      }
+      if (validLength < content.length) {
+        channel.truncate(validLength);
+        channel.position(validLength);
+      }
+      recordCount = records.size();
+    }
+    return records;
+  }
+
+  /**
+   * Empties the log once its records are covered by a snapshot.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  void truncate() throws IOException {
+    synchronized (flushLock) {
+      synchronized (this) {
+        buffer.reset();
+        durableCount = appendedCount;
+      }
+      channel.truncate(0);
+      channel.position(0);
+      channel.force(true);
+      recordCount = 0;
+      // the snapshot covers every applied mutation, the empty log can be trusted again
+      failed = false;
+    }
+  }
+
+  /**
+   * Continues the positions after the one a snapshot covers, in case the log was truncated.
+   *
+   * @param position last position covered by a snapshot
+   */
+  synchronized void skipTo(long position) {
+    lastPosition = Math.max(lastPosition, position);
+  }
+
+  /**
+   * Gets the position of the last appended record.
+   */
+  synchronized long getLastPosition() {
+    return lastPosition;
+  }
+
+  /**
+   * Gets the number of records written since the last truncate.
+   */
+  long getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Closes the log file.
+   */
+  void close() throws IOException {
+    synchronized (flushLock) {
+      channel.close();
+    }
+  }
+
+  private static byte[] frame(byte[] payload) {
+    ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+    record.putInt(payload.length);
+    record.putInt(checksum(payload));
+    record.put(payload);
+    return record.array();
+  }
+
+  private static int checksum(byte[] payload) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(payload, 0, payload.length);
+    return (int) crc32.getValue();
+  }
+
+  private static byte[] encode(CommitParams commitParams, long position) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeUTF(commitParams.getCommitEnum().name());
+      User user = commitParams.getUser();
+      writeNullableString(output, user == null ? null : user.getUsername());
+      writeNullableString(output, user == null ? null : user.getPassword());
+      writeNullableString(output, commitParams.getDocName());
+      output.writeInt(commitParams.getSectionNum());
+      writeNullableString(output, commitParams.getTargetUser());
+      output.writeLong(position);
+      List<String> deliveredNotifications = commitParams.getDeliveredNotifications();
+      output.writeBoolean(deliveredNotifications != null);
+      if (deliveredNotifications != null) {
+        output.writeInt(deliveredNotifications.size());
+        for (String notification : deliveredNotifications) {
+          output.writeUTF(notification);
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Record decode(byte[] payload) throws IOException {
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+      CommitParams commitParams = new CommitParams();
+      commitParams.setCommitEnum(CommitEnum.valueOf(input.readUTF()));
+      String username = readNullableString(input);
+      String password = readNullableString(input);
+      if (username != null) {
+        User user = new User(username);
+        user.setPassword(password);
+        commitParams.setUser(user);
+      }
+      commitParams.setDocName(readNullableString(input));
+      commitParams.setSectionNum(input.readInt());
+      commitParams.setTargetUser(readNullableString(input));
+      // records written before positions were logged are covered by any tagged snapshot
+      long position = input.available() >= Long.BYTES ? input.readLong() : 0;
+      if (input.available() > 0 && input.readBoolean()) {
+        int count = input.readInt();
+        List<String> deliveredNotifications = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          deliveredNotifications.add(input.readUTF());
+        }
+        commitParams.setDeliveredNotifications(deliveredNotifications);
+      }
+      return new Record(position, commitParams);
+    }
+  }
+
+  private static void writeNullableString(DataOutputStream output, String value) throws IOException {
+    output.writeBoolean(value != null);
+    if (value != null) output.writeUTF(value);
+  }
+
+  private static String readNullableString(DataInputStream input) throws IOException {
+    return input.readBoolean() ? input.readUTF() : null;
+  }
+}